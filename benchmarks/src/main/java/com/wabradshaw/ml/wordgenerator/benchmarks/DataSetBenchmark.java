@@ -0,0 +1,71 @@
+package com.wabradshaw.ml.wordgenerator.benchmarks;
+
+import com.wabradshaw.ml.wordgenerator.DataSetGenerator;
+import com.wabradshaw.ml.wordgenerator.DataSetVectoriser;
+import com.wabradshaw.ml.wordgenerator.InputEncoding;
+import com.wabradshaw.ml.wordgenerator.TokenSet;
+import com.wabradshaw.ml.wordgenerator.TokenisedCorpus;
+import org.nd4j.linalg.dataset.DataSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds training batches, both through {@link DataSetGenerator#getDataSet} and by vectorising a fixed set of words
+ * directly. Each batch is recycled afterwards, as the training iterator does. Scores are per batch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DataSetBenchmark {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+    private static final int MAX_WORD_LENGTH = 19;
+
+    @Param({"32", "128", "512"})
+    public int batchSize;
+
+    @Param({"ONE_HOT", "EMBEDDING"})
+    public InputEncoding inputEncoding;
+
+    private DataSetGenerator dataSetGenerator;
+    private DataSetVectoriser vectoriser;
+    private int[] entries;
+    private int batchCount;
+    private int batch;
+
+    @Setup
+    public void setup() {
+        TokenisedCorpus corpus = TokenisedCorpus.load(TOKEN_SET);
+        dataSetGenerator = new DataSetGenerator(corpus, inputEncoding);
+        vectoriser = new DataSetVectoriser(corpus, inputEncoding);
+        batchCount = corpus.size() / batchSize;
+
+        // The vectoriser needs words that fit, so take the first ones which are short enough
+        entries = new int[batchSize];
+        int found = 0;
+        for(int entry = 0; found < batchSize; entry++){
+            if(corpus.length(entry) <= MAX_WORD_LENGTH){
+                entries[found++] = entry;
+            }
+        }
+    }
+
+    @Benchmark
+    public DataSet getDataSet() {
+        DataSet dataSet = dataSetGenerator.getDataSet(batch, batchSize, MAX_WORD_LENGTH, batch);
+        batch = (batch + 1) % batchCount;
+        dataSetGenerator.recycle(dataSet);
+        return dataSet;
+    }
+
+    @Benchmark
+    public DataSet vectorise() {
+        DataSet dataSet = vectoriser.vectorise(entries, batchSize, MAX_WORD_LENGTH);
+        vectoriser.recycle(dataSet);
+        return dataSet;
+    }
+}
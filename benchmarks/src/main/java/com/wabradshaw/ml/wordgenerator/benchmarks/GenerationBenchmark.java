@@ -0,0 +1,59 @@
+package com.wabradshaw.ml.wordgenerator.benchmarks;
+
+import com.wabradshaw.ml.wordgenerator.DataSetGenerator;
+import com.wabradshaw.ml.wordgenerator.NetworkConfiguration;
+import com.wabradshaw.ml.wordgenerator.TokenSet;
+import com.wabradshaw.ml.wordgenerator.WordDataSetIterator;
+import com.wabradshaw.ml.wordgenerator.WordGenerator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates words end to end from a network which has had a short amount of training, so that words end at realistic
+ * lengths. Scores are per call to generate. Words generated from a prefix find the prefix in the generator's cache
+ * after the first call, so don't run it through the network.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerationBenchmark {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+    private static final int TRAINING_BATCHES = 20;
+    private static final String PREFIX = " K AE 1 T";
+
+    @Param({"10", "1000"})
+    public int sampleCount;
+
+    private WordGenerator wordGenerator;
+    private MultiLayerNetwork network;
+
+    @Setup
+    public void setup() {
+        network = new NetworkConfiguration(TOKEN_SET, 200, 0.05, 1).createNetwork();
+
+        WordDataSetIterator iterator = new WordDataSetIterator(new DataSetGenerator(TOKEN_SET), TRAINING_BATCHES, 300,
+                                                               19, new Random(1), 1, 2);
+        network.fit(iterator);
+        iterator.shutdown();
+
+        wordGenerator = new WordGenerator(TOKEN_SET, 0.01);
+    }
+
+    @Benchmark
+    public List<String> generate() {
+        return wordGenerator.generate(sampleCount, network);
+    }
+
+    @Benchmark
+    public List<String> generateWithPrefix() {
+        return wordGenerator.generate(sampleCount, PREFIX, network);
+    }
+}
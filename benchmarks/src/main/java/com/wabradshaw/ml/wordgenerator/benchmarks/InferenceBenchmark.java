@@ -0,0 +1,70 @@
+package com.wabradshaw.ml.wordgenerator.benchmarks;
+
+import com.wabradshaw.ml.wordgenerator.CompactModel;
+import com.wabradshaw.ml.wordgenerator.LstmEngine;
+import com.wabradshaw.ml.wordgenerator.NetworkConfiguration;
+import com.wabradshaw.ml.wordgenerator.TokenSet;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a single generation time step for a network of the size used in training, through both DL4J's rnnTimeStep and
+ * the {@link LstmEngine}, at the small batch sizes used when generating words. Scores are per time step.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class InferenceBenchmark {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+
+    @Param({"1", "4", "16"})
+    public int rows;
+
+    private MultiLayerNetwork network;
+    private INDArray input;
+
+    private LstmEngine engine;
+    private int[] tokens;
+    private double[] probabilities;
+
+    @Setup
+    public void setup() throws IOException {
+        network = new NetworkConfiguration(TOKEN_SET, 400, 0.05, 1).createNetwork();
+        input = Nd4j.zeros(new int[]{rows, TOKEN_SET.getLength(), 1}, 'f');
+        tokens = new int[rows];
+        for(int row = 0; row < rows; row++){
+            tokens[row] = 2 + row % (TOKEN_SET.getLength() - 2);
+            input.putScalar(new int[]{row, tokens[row], 0}, 1);
+        }
+
+        File file = File.createTempFile("inference", CompactModel.EXTENSION);
+        CompactModel.export(network, TOKEN_SET, file);
+        engine = new LstmEngine(CompactModel.load(file));
+        file.delete();
+
+        probabilities = new double[rows * TOKEN_SET.getLength()];
+        network.rnnClearPreviousState();
+        engine.reset(rows);
+    }
+
+    @Benchmark
+    public INDArray networkStep() {
+        return network.rnnTimeStep(input);
+    }
+
+    @Benchmark
+    public double[] engineStep() {
+        engine.step(tokens, rows, probabilities);
+        return probabilities;
+    }
+}
@@ -0,0 +1,60 @@
+package com.wabradshaw.ml.wordgenerator.benchmarks;
+
+import com.wabradshaw.ml.wordgenerator.CompactModel;
+import com.wabradshaw.ml.wordgenerator.NetworkConfiguration;
+import com.wabradshaw.ml.wordgenerator.TokenSet;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a network of the size used in training, from both a training zip and a {@link CompactModel} file. Scores are
+ * per load, once ND4J has already been initialised.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelLoadBenchmark {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+
+    private File directory;
+    private File zip;
+    private File compact;
+
+    @Setup
+    public void setup() throws IOException {
+        MultiLayerNetwork network = new NetworkConfiguration(TOKEN_SET, 400, 0.05, 1).createNetwork();
+
+        directory = Files.createTempDirectory("model-load").toFile();
+        zip = new File(directory, "model.zip");
+        compact = new File(directory, "model" + CompactModel.EXTENSION);
+        ModelSerializer.writeModel(network, zip, true);
+        CompactModel.export(network, TOKEN_SET, compact);
+    }
+
+    @TearDown
+    public void tearDown() {
+        zip.delete();
+        compact.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public MultiLayerNetwork loadZip() throws IOException {
+        return ModelSerializer.restoreMultiLayerNetwork(zip, false);
+    }
+
+    @Benchmark
+    public MultiLayerNetwork loadCompact() throws IOException {
+        return CompactModel.load(compact).createNetwork();
+    }
+}
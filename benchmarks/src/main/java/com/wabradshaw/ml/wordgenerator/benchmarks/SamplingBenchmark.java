@@ -0,0 +1,51 @@
+package com.wabradshaw.ml.wordgenerator.benchmarks;
+
+import com.wabradshaw.ml.wordgenerator.TokenSet;
+import com.wabradshaw.ml.wordgenerator.WordGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples a token from a fixed, skewed probability distribution. Scores are per sample.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SamplingBenchmark {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+
+    @Param({"0.0", "0.01"})
+    public double minDistribution;
+
+    private WordGenerator wordGenerator;
+    private double[] distribution;
+    private Random rng;
+
+    @Setup
+    public void setup() {
+        wordGenerator = new WordGenerator(TOKEN_SET, minDistribution);
+        rng = new Random(1);
+
+        // Raising uniform values to a power gives a few likely tokens and a long tail, like a trained network
+        distribution = new double[TOKEN_SET.getLength()];
+        double total = 0;
+        for(int i = 0; i < distribution.length; i++){
+            distribution[i] = Math.pow(rng.nextDouble(), 4);
+            total += distribution[i];
+        }
+        for(int i = 0; i < distribution.length; i++){
+            distribution[i] /= total;
+        }
+    }
+
+    @Benchmark
+    public int sampleFromDistribution() {
+        return wordGenerator.sampleFromDistribution(distribution, rng);
+    }
+}
@@ -0,0 +1,75 @@
+package com.wabradshaw.ml.wordgenerator.benchmarks;
+
+import com.wabradshaw.ml.wordgenerator.TokenSet;
+import com.wabradshaw.ml.wordgenerator.tokenisation.Tokeniser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenises words from the phonemes file, using both the list and the primitive versions of
+ * {@link Tokeniser#tokenise}. Scores are per word.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TokeniserBenchmark {
+
+    private static final int WORDS = 10000;
+    private static final int IGNORED_LINES = 126;
+
+    @Param({"PHONEMES_ARPABET_SEPARATE_STRESSES", "CHARS_EN_CAPS_WITH_COMMON"})
+    public TokenSet tokenSet;
+
+    private Tokeniser tokeniser;
+    private List<String> words;
+    private int[] destination;
+
+    @Setup
+    public void setup() throws IOException {
+        tokeniser = tokenSet.getTokeniser();
+        words = new ArrayList<>(WORDS);
+
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(
+                TokeniserBenchmark.class.getResourceAsStream("/phonemes.txt"), StandardCharsets.UTF_8))){
+            int lineNumber = 0;
+            String line;
+            while((line = reader.readLine()) != null && words.size() < WORDS){
+                String word = lineNumber++ < IGNORED_LINES ? null : tokeniser.getRelevantWord(line);
+                if(word != null){
+                    words.add(word);
+                }
+            }
+        }
+
+        int longest = words.stream().mapToInt(String::length).max().orElse(0);
+        destination = new int[longest];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void tokeniseList(Blackhole blackhole) {
+        for(String word : words){
+            blackhole.consume(tokeniser.tokenise(word));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void tokenisePrimitive(Blackhole blackhole) {
+        for(String word : words){
+            blackhole.consume(tokeniser.tokenise(word, destination));
+        }
+        blackhole.consume(destination);
+    }
+}
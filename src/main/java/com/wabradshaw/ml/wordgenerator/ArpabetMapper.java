@@ -1,17 +1,47 @@
 package com.wabradshaw.ml.wordgenerator;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * Converts arpabet phonemes into IPA. Words can either be given as text, or as the token ids produced by a
+ * {@link WordGenerator} or a phoneme {@link com.wabradshaw.ml.wordgenerator.tokenisation.Tokeniser}.
+ *
+ * Every symbol is given an id when the mapper is built, along with its IPA and whether it is a vowel, so converting a
+ * word only needs array lookups. Each token in the {@link TokenSet} is expanded into its symbols in advance too, so
+ * token ids never need to be turned back into text.
+ *
+ * This is safe to use from multiple threads at once.
+ */
 public class ArpabetMapper {
 
+    private static final int CHUNK_SIZE = 1024;
+
     private final Map<String, String> mappings;
 
     private final Set <String> vowels = new HashSet<>(Arrays.asList("AA,AE,AH,AO,AW,AY,EH,ER,EY,IH,IY,OW,OY,UH,UW".split(",")));
     private final Set <String> irreplaceable = new HashSet<>(Arrays.asList("IY,0,1,2".split(",")));
     private final Set <String> stresses = new HashSet<>(Arrays.asList("1","2"));
 
+    private final Map<String, Integer> symbolIds = new HashMap<>();
+    private final String[] symbolIpa;
+    private final boolean[] symbolVowel;
+    private final boolean[] symbolIrreplaceable;
+    private final boolean[] symbolStress;
+    private final int emptySymbol;
+    private final int unstressedSymbol;
+    private final int schwaSymbol;
+
+    private final int[][] tokenSymbols;
+
     public ArpabetMapper(){
+        this(TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES);
+    }
+
+    /**
+     * @param tokenSet The phoneme {@link TokenSet} that token ids passed to the mapper come from.
+     */
+    public ArpabetMapper(TokenSet tokenSet){
         mappings = new HashMap<>();
         mappings.put("","");
         mappings.put(" ","");
@@ -58,6 +88,50 @@ public class ArpabetMapper {
         mappings.put("1","ˈ");
         mappings.put("2","ˌ");
         mappings.put("ə","ə");
+
+        symbolIpa = new String[mappings.size()];
+        symbolVowel = new boolean[mappings.size()];
+        symbolIrreplaceable = new boolean[mappings.size()];
+        symbolStress = new boolean[mappings.size()];
+        for(Map.Entry<String, String> mapping : mappings.entrySet()){
+            int id = symbolIds.size();
+            symbolIds.put(mapping.getKey(), id);
+            symbolIpa[id] = mapping.getValue();
+            symbolVowel[id] = vowels.contains(mapping.getKey());
+            symbolIrreplaceable[id] = irreplaceable.contains(mapping.getKey());
+            symbolStress[id] = stresses.contains(mapping.getKey());
+        }
+        emptySymbol = symbolIds.get("");
+        unstressedSymbol = symbolIds.get("0");
+        schwaSymbol = symbolIds.get("ə");
+
+        tokenSymbols = expandTokens(tokenSet);
+    }
+
+    /**
+     * Works out the symbols for each token. Tokens with their stress attached (e.g. "AH1") become two symbols, just as
+     * if the stresses had been split. The start and end tokens have no symbols.
+     */
+    private int[][] expandTokens(TokenSet tokenSet) {
+        String[] tokens = tokenSet.getTokens();
+        int[][] expanded = new int[tokens.length][];
+
+        for(int token = 0; token < tokens.length; token++){
+            String symbol = tokens[token];
+            char last = symbol.charAt(symbol.length() - 1);
+
+            if(symbol.equals(TokenSet.START_TOKEN) || symbol.equals(TokenSet.EOF_TOKEN)){
+                expanded[token] = new int[0];
+            } else if(symbolIds.containsKey(symbol)){
+                expanded[token] = new int[]{symbolIds.get(symbol)};
+            } else if(Character.isDigit(last) && symbolIds.containsKey(symbol.substring(0, symbol.length() - 1))){
+                expanded[token] = new int[]{symbolIds.get(symbol.substring(0, symbol.length() - 1)),
+                                            symbolIds.get(String.valueOf(last))};
+            } else {
+                throw new IllegalArgumentException(tokenSet + " contains " + symbol + ", which isn't arpabet.");
+            }
+        }
+        return expanded;
     }
 
     /**
@@ -68,37 +142,144 @@ public class ArpabetMapper {
      * @return        The IPA version of the input string (e.g.
      */
     public String map(String arpabet){
-        String[] symbols = arpabet.split(" ");
+        String[] split = arpabet.split(" ");
+
+        int[] symbols = new int[split.length];
+        for(int i = 0; i < split.length; i++){
+            Integer id = symbolIds.get(split[i]);
+            if(id == null){
+                throw new IllegalArgumentException(split[i] + " isn't an arpabet symbol.");
+            }
+            symbols[i] = id;
+        }
+
+        return mapSymbols(symbols, symbols.length, new Buffers(symbols.length));
+    }
+
+    /**
+     * Maps a word made of token ids into IPA. The result is the same as mapping the text the {@link WordGenerator}
+     * produces for those tokens.
+     *
+     * @param tokens The token ids, from the {@link TokenSet} given to the constructor.
+     * @param length The number of tokens in the word.
+     * @return The IPA version of the word.
+     */
+    public String map(int[] tokens, int length){
+        return mapTokens(tokens, length, new Buffers(length));
+    }
+
+    /**
+     * Maps a list of words made of token ids into IPA, reusing the same working space for each word.
+     *
+     * @param words The words, using token ids from the {@link TokenSet} given to the constructor.
+     * @return The IPA version of each word, in the same order.
+     */
+    public List<String> mapAll(List<int[]> words){
+        String[] result = new String[words.size()];
+        mapRange(words, 0, words.size(), result);
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Maps a list of words made of token ids into IPA, splitting the list into chunks which are mapped in parallel.
+     *
+     * @param words The words, using token ids from the {@link TokenSet} given to the constructor.
+     * @return The IPA version of each word, in the same order.
+     */
+    public List<String> mapAllParallel(List<int[]> words){
+        String[] result = new String[words.size()];
+        int chunks = (words.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream.range(0, chunks).parallel().forEach(chunk ->
+                mapRange(words, chunk * CHUNK_SIZE, Math.min(words.size(), (chunk + 1) * CHUNK_SIZE), result));
+        return Arrays.asList(result);
+    }
+
+    private void mapRange(List<int[]> words, int start, int end, String[] result){
+        Buffers buffers = new Buffers(0);
+        for(int i = start; i < end; i++){
+            int[] word = words.get(i);
+            result[i] = mapTokens(word, word.length, buffers);
+        }
+    }
+
+    /**
+     * Expands the tokens into their symbols, then maps them. Generated words start with a space, so an empty symbol is
+     * put in front to match.
+     */
+    private String mapTokens(int[] tokens, int length, Buffers buffers){
+        buffers.ensureCapacity(length * 2 + 1);
+        int[] symbols = buffers.symbols;
 
-        List<String> reordered = new ArrayList<>();
-        for(int i = 0; i < symbols.length; i ++){
-            String symbol = symbols[i];
+        int count = 0;
+        symbols[count++] = emptySymbol;
+        for(int i = 0; i < length; i++){
+            for(int symbol : tokenSymbols[tokens[i]]){
+                symbols[count++] = symbol;
+            }
+        }
+
+        return mapSymbols(symbols, count, buffers);
+    }
 
-            // Stress symbols should be added before the first consonant before the symbol
-            if(stresses.contains(symbol)){
+    private String mapSymbols(int[] symbols, int count, Buffers buffers){
+        buffers.ensureCapacity(count);
+        int[] reordered = buffers.reordered;
+
+        for(int i = 0; i < count; i ++){
+            int symbol = symbols[i];
+
+            // Stress symbols should be added before the first consonant before the symbol. The symbols it jumps over
+            // are shifted along as they're checked.
+            if(symbolStress[symbol]){
                 int targetIndex = i - 1;
-                while(targetIndex > 0 && vowels.contains(symbols[targetIndex])){
+                while(targetIndex > 0 && symbolVowel[symbols[targetIndex]]){
                     targetIndex--;
                 }
-                reordered.add(targetIndex, symbol);
+                targetIndex = Math.max(targetIndex, 0);
+                System.arraycopy(reordered, targetIndex, reordered, targetIndex + 1, i - targetIndex);
+                reordered[targetIndex] = symbol;
 
             // Unstressed vowels (0) almost always use ə instead of whatever they started with.
-            } else if (symbol.equals("0") && i > 0){
-                String previous = reordered.get(reordered.size()-1);
-                if(!irreplaceable.contains(previous)) {
-                    reordered.set(reordered.size() - 1, "ə");
+            } else if (symbol == unstressedSymbol && i > 0){
+                if(!symbolIrreplaceable[reordered[i - 1]]) {
+                    reordered[i - 1] = schwaSymbol;
                 }
                 // Unstressed symbol doesn't really need to be there, but this makes indexes a lot easier for reordering
-                reordered.add(symbol);
+                reordered[i] = symbol;
 
             // Everything else can be added
             } else {
-                reordered.add(symbol);
+                reordered[i] = symbol;
             }
+        }
 
+        StringBuilder builder = buffers.builder;
+        builder.setLength(0);
+        for(int i = 0; i < count; i++){
+            builder.append(symbolIpa[reordered[i]]);
         }
+        return builder.toString();
+    }
 
-        return String.join("", reordered.stream().map(mappings::get).collect(Collectors.toList()));
+    /**
+     * Working space for mapping words, which can be reused between words on the same thread.
+     */
+    private static class Buffers {
+        private int[] symbols;
+        private int[] reordered;
+        private final StringBuilder builder = new StringBuilder();
+
+        private Buffers(int capacity){
+            this.symbols = new int[capacity];
+            this.reordered = new int[capacity];
+        }
+
+        private void ensureCapacity(int capacity){
+            if(symbols.length < capacity){
+                symbols = Arrays.copyOf(symbols, capacity * 2);
+                reordered = new int[capacity * 2];
+            }
+        }
     }
 
     public static void main(String[] args){
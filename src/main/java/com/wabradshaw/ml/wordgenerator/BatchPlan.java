@@ -0,0 +1,239 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The words used in each batch of an epoch. The batches are stored as consecutive ranges of one array of corpus
+ * indexes, along with the word length each batch is padded to.
+ */
+public class BatchPlan {
+
+    private final int[] entries;
+    private final int[] starts;
+    private final int[] paddedLengths;
+    private final int maxWordLength;
+
+    private BatchPlan(int[] entries, int[] starts, int[] paddedLengths, int maxWordLength) {
+        this.entries = entries;
+        this.starts = starts;
+        this.paddedLengths = paddedLengths;
+        this.maxWordLength = maxWordLength;
+    }
+
+    /**
+     * Splits the corpus into fixed slices in its original order. Batch n uses the words from n * batchSize up to
+     * (n + 1) * batchSize which are short enough, and every batch is padded to the same maximum word length.
+     *
+     * @param corpus        The corpus being split into batches.
+     * @param batches       The maximum number of batches. This is capped at the number the corpus can fill.
+     * @param batchSize     The number of words from the corpus used in each batch.
+     * @param maxWordLength The maximum number of tokens in a word. Longer words are ignored.
+     * @return The plan.
+     */
+    public static BatchPlan sequential(TokenisedCorpus corpus, int batches, int batchSize, int maxWordLength) {
+        int batchCount = Math.min(batches, (corpus.size() + batchSize - 1) / batchSize);
+        int end = Math.min(batchCount * batchSize, corpus.size());
+
+        int[] entries = new int[end];
+        int[] starts = new int[batchCount + 1];
+        int[] paddedLengths = new int[batchCount];
+
+        int count = 0;
+        for(int entry = 0; entry < end; entry++){
+            if(entry % batchSize == 0){
+                starts[entry / batchSize] = count;
+            }
+            if(corpus.length(entry) <= maxWordLength){
+                entries[count++] = entry;
+            }
+        }
+        starts[batchCount] = count;
+        Arrays.fill(paddedLengths, maxWordLength);
+
+        return new BatchPlan(entries, starts, paddedLengths, maxWordLength);
+    }
+
+    /**
+     * Splits a random permutation of the whole corpus into batches, so each batch is a sample from across the corpus
+     * rather than a narrow slice of the alphabet. A new permutation is drawn every epoch, so if the batches don't cover
+     * the whole corpus, each epoch uses different words. Every batch is padded to the same maximum word length.
+     *
+     * @param corpus        The corpus being split into batches.
+     * @param batches       The maximum number of batches. This is capped at the number the corpus can fill.
+     * @param batchSize     The number of words in each batch.
+     * @param maxWordLength The maximum number of tokens in a word. Longer words are ignored.
+     * @param random        The source of randomness used to order the words.
+     * @return The plan.
+     */
+    public static BatchPlan shuffled(TokenisedCorpus corpus, int batches, int batchSize, int maxWordLength,
+                                     Random random) {
+        int[] permutation = new int[corpus.size()];
+        int count = 0;
+        for(int entry = 0; entry < corpus.size(); entry++){
+            if(corpus.length(entry) <= maxWordLength){
+                permutation[count++] = entry;
+            }
+        }
+        shuffle(permutation, count, random);
+
+        int batchCount = Math.min(batches, (count + batchSize - 1) / batchSize);
+        int[] starts = new int[batchCount + 1];
+        int[] paddedLengths = new int[batchCount];
+        for(int batch = 0; batch < batchCount; batch++){
+            starts[batch] = batch * batchSize;
+        }
+        starts[batchCount] = Math.min(batchCount * batchSize, count);
+        Arrays.fill(paddedLengths, maxWordLength);
+
+        return new BatchPlan(permutation, starts, paddedLengths, maxWordLength);
+    }
+
+    /**
+     * Groups words of the same length into batches, so that each batch only needs to be padded to the length of its
+     * longest word rather than the maximum word length. The same words are used as in the sequential plan, but the
+     * order of the batches is shuffled so the network doesn't see every short word before every long one.
+     *
+     * @param corpus        The corpus being split into batches.
+     * @param batches       The maximum number of batches. This is capped at the number the corpus can fill.
+     * @param batchSize     The number of words from the corpus used in each batch.
+     * @param maxWordLength The maximum number of tokens in a word. Longer words are ignored.
+     * @param random        The source of randomness used to order the batches.
+     * @return The plan.
+     */
+    public static BatchPlan bucketed(TokenisedCorpus corpus, int batches, int batchSize, int maxWordLength,
+                                     Random random) {
+        BatchPlan sequential = sequential(corpus, batches, batchSize, maxWordLength);
+        int count = sequential.starts[sequential.getBatchCount()];
+
+        // Counting sort by length keeps words of the same length in their original order
+        int[] lengthStarts = new int[maxWordLength + 2];
+        for(int i = 0; i < count; i++){
+            lengthStarts[corpus.length(sequential.entries[i]) + 1]++;
+        }
+        for(int length = 1; length < lengthStarts.length; length++){
+            lengthStarts[length] += lengthStarts[length - 1];
+        }
+        int[] sorted = new int[count];
+        for(int i = 0; i < count; i++){
+            int entry = sequential.entries[i];
+            sorted[lengthStarts[corpus.length(entry)]++] = entry;
+        }
+
+        int batchCount = (count + batchSize - 1) / batchSize;
+        int[] order = new int[batchCount];
+        for(int i = 0; i < batchCount; i++){
+            order[i] = i;
+        }
+        shuffle(order, order.length, random);
+
+        int[] entries = new int[count];
+        int[] starts = new int[batchCount + 1];
+        int[] paddedLengths = new int[batchCount];
+        int position = 0;
+        for(int batch = 0; batch < batchCount; batch++){
+            int from = order[batch] * batchSize;
+            int to = Math.min(from + batchSize, count);
+            System.arraycopy(sorted, from, entries, position, to - from);
+
+            // The vectoriser adds the step for the end of file token after the longest word
+            paddedLengths[batch] = corpus.length(sorted[to - 1]);
+
+            starts[batch] = position;
+            position += to - from;
+        }
+        starts[batchCount] = position;
+
+        return new BatchPlan(entries, starts, paddedLengths, maxWordLength);
+    }
+
+    /**
+     * @return The number of batches in the plan.
+     */
+    public int getBatchCount() {
+        return paddedLengths.length;
+    }
+
+    /**
+     * @param batch The index of the batch.
+     * @return The number of words in that batch.
+     */
+    public int getBatchSize(int batch) {
+        return starts[batch + 1] - starts[batch];
+    }
+
+    /**
+     * @param batch The index of the batch.
+     * @return The word length the batch should be padded to. The batch has one more time step than this, for the end
+     *         of file token after the longest word.
+     */
+    public int getPaddedLength(int batch) {
+        return paddedLengths[batch];
+    }
+
+    /**
+     * @return The maximum number of tokens in a word. Words of this length have no end of file token.
+     */
+    public int getMaxWordLength() {
+        return maxWordLength;
+    }
+
+    /**
+     * Copies the corpus indexes of the words in a batch into an existing array.
+     *
+     * @param batch       The index of the batch.
+     * @param destination The array to copy the indexes into. This must be at least as long as the batch.
+     * @return The number of words in the batch.
+     */
+    public int getEntries(int batch, int[] destination) {
+        int size = getBatchSize(batch);
+        System.arraycopy(entries, starts[batch], destination, 0, size);
+        return size;
+    }
+
+    /**
+     * @return The total number of time steps in every batch, including padding.
+     */
+    public long getTimeSteps() {
+        long steps = 0;
+        for(int batch = 0; batch < getBatchCount(); batch++){
+            steps += (long) getBatchSize(batch) * (paddedLengths[batch] + 1);
+        }
+        return steps;
+    }
+
+    /**
+     * @param corpus The corpus the plan was built from.
+     * @return The number of time steps with unmasked labels, i.e. each token in a word plus its end of file token.
+     */
+    public long getUnmaskedTimeSteps(TokenisedCorpus corpus) {
+        long steps = 0;
+        for(int batch = 0; batch < getBatchCount(); batch++){
+            for(int i = starts[batch]; i < starts[batch + 1]; i++){
+                int length = corpus.length(entries[i]);
+                steps += length < maxWordLength ? length + 1 : length;
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * @param corpus The corpus the plan was built from.
+     * @return The fraction of time steps which are only there as padding.
+     */
+    public double getPaddingRatio(TokenisedCorpus corpus) {
+        return 1 - getUnmaskedTimeSteps(corpus) * 1.0 / getTimeSteps();
+    }
+
+    /**
+     * Shuffles the first few values of an array in place.
+     */
+    private static void shuffle(int[] values, int length, Random random) {
+        for(int i = length - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
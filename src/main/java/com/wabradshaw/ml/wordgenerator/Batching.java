@@ -0,0 +1,45 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import java.util.Random;
+
+/**
+ * The ways the corpus can be split into batches for each epoch.
+ */
+public enum Batching {
+
+    /**
+     * Fixed slices of the corpus in its original order, all padded to the maximum word length.
+     */
+    SEQUENTIAL,
+
+    /**
+     * Words grouped by length, with each batch padded to the length of its longest word.
+     */
+    BUCKETED,
+
+    /**
+     * Words drawn from a new random permutation of the whole corpus each epoch, all padded to the maximum word length.
+     */
+    SHUFFLED;
+
+    /**
+     * Builds the plan for one epoch.
+     *
+     * @param corpus        The corpus being split into batches.
+     * @param batches       The maximum number of batches.
+     * @param batchSize     The number of words from the corpus used in each batch.
+     * @param maxWordLength The maximum number of tokens in a word. Longer words are ignored.
+     * @param random        The source of randomness for the epoch.
+     * @return The plan.
+     */
+    public BatchPlan plan(TokenisedCorpus corpus, int batches, int batchSize, int maxWordLength, Random random) {
+        switch(this){
+            case BUCKETED:
+                return BatchPlan.bucketed(corpus, batches, batchSize, maxWordLength, random);
+            case SHUFFLED:
+                return BatchPlan.shuffled(corpus, batches, batchSize, maxWordLength, random);
+            default:
+                return BatchPlan.sequential(corpus, batches, batchSize, maxWordLength);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.wabradshaw.ml.wordgenerator;
+
+/**
+ * A fixed size set of 64 bit hashes which can give false positives, but never false negatives. It uses far less memory
+ * than storing the values themselves, which makes it suitable for checking against every word in the corpus.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedSize      The number of values which will be added.
+     * @param falsePositiveRate The chance of an absent value being reported as present, once every value has been
+     *                          added.
+     */
+    public BloomFilter(int expectedSize, double falsePositiveRate) {
+        if(falsePositiveRate <= 0 || falsePositiveRate >= 1){
+            throw new IllegalArgumentException("The false positive rate must be between 0 and 1, not "
+                                               + falsePositiveRate);
+        }
+
+        int size = Math.max(expectedSize, 1);
+        long bitCount = (long) Math.ceil(-size * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) ((bitCount + 63) / 64)];
+        this.bitCount = bits.length * 64L;
+        this.hashCount = Math.max(1, (int) Math.round(this.bitCount / (double) size * Math.log(2)));
+    }
+
+    /**
+     * Adds a value to the filter.
+     *
+     * @param hash A well mixed 64 bit hash of the value.
+     */
+    public void add(long hash) {
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for(int i = 0; i < hashCount; i++){
+            long bit = Math.floorMod(first + (long) i * second, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param hash A well mixed 64 bit hash of the value.
+     * @return False if the value was definitely never added, true if it probably was.
+     */
+    public boolean mightContain(long hash) {
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for(int i = 0; i < hashCount; i++){
+            long bit = Math.floorMod(first + (long) i * second, bitCount);
+            if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The memory used by the filter, in bytes.
+     */
+    public long getSizeInBytes() {
+        return bits.length * (long) Long.BYTES;
+    }
+}
@@ -0,0 +1,236 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves checkpoints of a network while it trains, so training can carry on from the last checkpoint after a crash.
+ *
+ * Each checkpoint is a normal model zip, including the updater state, with the {@link TrainingState} added to it.
+ * Writing the zip is slow, so the network is copied on the training thread and the copy is written on a background
+ * thread while training continues. Only the most recent checkpoints are kept.
+ *
+ * This is a {@link org.deeplearning4j.optimize.api.TrainingListener}, and takes a checkpoint at the end of every epoch.
+ * To also take checkpoints part way through an epoch, the network should be trained from the iterator returned by
+ * {@link #instrument(DataSetIterator)}. This only works with a single worker, as with several workers the network isn't
+ * updated until the end of the epoch.
+ */
+public class Checkpointer extends BaseTrainingListener implements AutoCloseable {
+
+    private static final String PREFIX = "checkpoint-";
+    private static final String EXTENSION = ".zip";
+    private static final String STATE_KEY = "trainingState";
+
+    private final MultiLayerNetwork network;
+    private final WordDataSetIterator iterator;
+    private final File directory;
+    private final int keep;
+    private final int frequency;
+    private final ExecutorService writer;
+
+    private int epoch;
+    private volatile Exception failure;
+
+    /**
+     * @param network   The network being trained.
+     * @param iterator  The iterator the network is being trained from.
+     * @param directory The directory to write the checkpoints to.
+     * @param keep      The number of checkpoints to keep. Older checkpoints are deleted.
+     * @param frequency How many batches to train between checkpoints within an epoch, or 0 to only take checkpoints at
+     *                  the end of each epoch.
+     * @param epoch     The epoch training starts from, when resuming.
+     */
+    public Checkpointer(MultiLayerNetwork network, WordDataSetIterator iterator, File directory, int keep,
+                        int frequency, int epoch) {
+        if(keep < 1 || frequency < 0){
+            throw new IllegalArgumentException("At least one checkpoint must be kept, and the frequency can't be " +
+                                               "negative.");
+        }
+        this.network = network;
+        this.iterator = iterator;
+        this.directory = directory;
+        this.keep = keep;
+        this.frequency = frequency;
+        this.epoch = epoch;
+
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        directory.mkdirs();
+    }
+
+    /**
+     * Wraps an iterator so a checkpoint is taken every few batches, just before the next batch is requested.
+     *
+     * @param iterator The iterator producing the training batches, or one which wraps it.
+     * @return An iterator which produces the same batches.
+     */
+    public DataSetIterator instrument(DataSetIterator iterator) {
+        return new CheckpointingIterator(iterator);
+    }
+
+    @Override
+    public void onEpochEnd(Model model) {
+        epoch++;
+        checkpoint(new TrainingState(epoch, 0, iterator.getRandom()));
+    }
+
+    /**
+     * Copies the network, then writes the copy and the training state to a new checkpoint in the background. If
+     * an earlier checkpoint is still being written, this one is written after it.
+     *
+     * @param state How far training has got.
+     */
+    public void checkpoint(TrainingState state) {
+        throwIfFailed();
+        MultiLayerNetwork snapshot = network.clone();
+        writer.execute(() -> {
+            try {
+                write(snapshot, state);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+        });
+    }
+
+    /**
+     * Waits for any checkpoints still being written, then stops the background thread.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for checkpoints to be written.", e);
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Loads the most recent checkpoint in a directory.
+     *
+     * @param directory The directory the checkpoints were written to.
+     * @return The checkpoint, or null if there aren't any.
+     * @throws IOException If the checkpoint can't be read.
+     */
+    public static Checkpoint loadLatest(File directory) throws IOException {
+        File[] checkpoints = list(directory);
+        if(checkpoints.length == 0){
+            return null;
+        }
+        File latest = checkpoints[checkpoints.length - 1];
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(latest, true);
+        TrainingState state = ModelSerializer.getObjectFromFile(latest, STATE_KEY);
+        return new Checkpoint(latest, network, state);
+    }
+
+    /**
+     * Writes a checkpoint to a temporary file first, so a partially written checkpoint is never loaded, then deletes
+     * all but the most recent checkpoints.
+     */
+    private void write(MultiLayerNetwork snapshot, TrainingState state) throws IOException {
+        File temp = File.createTempFile(PREFIX, ".tmp", directory);
+        try {
+            ModelSerializer.writeModel(snapshot, temp, true);
+            ModelSerializer.addObjectToFile(temp, STATE_KEY, state);
+
+            String name = String.format("%s%05d-%06d%s", PREFIX, state.getEpoch(), state.getBatch(), EXTENSION);
+            Files.move(temp.toPath(), new File(directory, name).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        File[] checkpoints = list(directory);
+        for(int i = 0; i < checkpoints.length - keep; i++){
+            Files.deleteIfExists(checkpoints[i].toPath());
+        }
+    }
+
+    /**
+     * @return The checkpoints in a directory, oldest first. The names are zero padded, so they sort by position.
+     */
+    private static File[] list(File directory) {
+        File[] checkpoints = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(EXTENSION));
+        if(checkpoints == null){
+            return new File[0];
+        }
+        Arrays.sort(checkpoints);
+        return checkpoints;
+    }
+
+    private void throwIfFailed() {
+        if(failure != null){
+            throw new RuntimeException("Could not write a checkpoint.", failure);
+        }
+    }
+
+    /**
+     * A checkpoint which has been loaded from disk.
+     */
+    public static class Checkpoint {
+        private final File file;
+        private final MultiLayerNetwork network;
+        private final TrainingState state;
+
+        private Checkpoint(File file, MultiLayerNetwork network, TrainingState state) {
+            this.file = file;
+            this.network = network;
+            this.state = state;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The network, including its updater state, as it was when the checkpoint was taken.
+         */
+        public MultiLayerNetwork getNetwork() {
+            return network;
+        }
+
+        public TrainingState getState() {
+            return state;
+        }
+    }
+
+    /**
+     * Passes everything through to another iterator, taking a checkpoint before every few batches.
+     */
+    private class CheckpointingIterator extends ForwardingDataSetIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private CheckpointingIterator(DataSetIterator iterator) {
+            super(iterator);
+        }
+
+        @Override
+        public DataSet next() {
+            // Asking for the next batch means the network has finished with the last one
+            int taken = Checkpointer.this.iterator.getBatchesTaken();
+            if(frequency > 0 && taken > 0 && taken % frequency == 0){
+                checkpoint(new TrainingState(epoch, taken, Checkpointer.this.iterator.getEpochRandom()));
+            }
+            return iterator.next();
+        }
+    }
+}
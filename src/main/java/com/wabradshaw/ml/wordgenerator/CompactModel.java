@@ -0,0 +1,527 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trained network stored for generation only, without the updater state or the DL4J configuration JSON that a
+ * training zip contains. Only networks built by {@link NetworkConfiguration} can be stored, so the shape of the network
+ * is described by a handful of numbers, and the file is mostly the raw weights.
+ *
+ * The file contains a header, followed by the values of every parameter in little-endian order. Each parameter is
+ * stored in column-major order, which is the order DL4J flattens them in, so the values of all of the parameters
+ * together are the network's parameter vector. The weight matrices of the LSTM and output layers can be stored at a
+ * lower {@link Precision} to make the file smaller. The file is memory-mapped when it's loaded, so nothing is read
+ * until a parameter is used.
+ */
+public class CompactModel {
+
+    public static final String EXTENSION = ".wgm";
+
+    private static final int MAGIC = 0x5747434D;
+    private static final int VERSION = 2;
+
+    // Version 1 files don't record the precision of each parameter, as everything was stored as floats
+    private static final int FLOAT_ONLY_VERSION = 1;
+
+    private static final int INT8_LIMIT = 127;
+
+    private final TokenSet tokenSet;
+    private final InputEncoding inputEncoding;
+    private final int layerSize;
+    private final int embeddingSize;
+    private final List<Parameter> parameters;
+
+    private CompactModel(TokenSet tokenSet, InputEncoding inputEncoding, int layerSize, int embeddingSize,
+                         List<Parameter> parameters) {
+        this.tokenSet = tokenSet;
+        this.inputEncoding = inputEncoding;
+        this.layerSize = layerSize;
+        this.embeddingSize = embeddingSize;
+        this.parameters = Collections.unmodifiableList(parameters);
+    }
+
+    /**
+     * Writes the parts of a network needed for generation to a file, at full precision.
+     *
+     * @param network  The trained network. This must have been built by {@link NetworkConfiguration}.
+     * @param tokenSet The {@link TokenSet} the network was trained on.
+     * @param file     The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    public static void export(MultiLayerNetwork network, TokenSet tokenSet, File file) throws IOException {
+        export(network, tokenSet, file, Precision.FLOAT);
+    }
+
+    /**
+     * Writes the parts of a network needed for generation to a file.
+     *
+     * @param network   The trained network. This must have been built by {@link NetworkConfiguration}.
+     * @param tokenSet  The {@link TokenSet} the network was trained on.
+     * @param file      The file to write.
+     * @param precision The precision to store the weight matrices of the LSTM and output layers at.
+     * @throws IOException If the file can't be written.
+     */
+    public static void export(MultiLayerNetwork network, TokenSet tokenSet, File file, Precision precision)
+            throws IOException {
+        InputEncoding inputEncoding = InputEncoding.of(network);
+        int firstLstm = inputEncoding == InputEncoding.EMBEDDING ? 1 : 0;
+        int layerCount = network.getnLayers();
+
+        if(layerCount != firstLstm + 3
+           || !(layer(network, firstLstm) instanceof LSTM)
+           || !(layer(network, firstLstm + 1) instanceof LSTM)
+           || !(layer(network, firstLstm + 2) instanceof RnnOutputLayer)){
+            throw new IllegalArgumentException("Only networks built by NetworkConfiguration can be exported.");
+        }
+        if(nOut(network, layerCount - 1) != tokenSet.getLength()){
+            throw new IllegalArgumentException("The network wasn't trained on " + tokenSet);
+        }
+        int layerSize = nOut(network, firstLstm);
+        int embeddingSize = firstLstm == 0 ? 0 : nOut(network, 0);
+
+        List<INDArray> arrays = new ArrayList<>();
+        List<Precision> precisions = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        putString(header, tokenSet.name());
+        putString(header, inputEncoding.name());
+        header.putInt(layerSize);
+        header.putInt(embeddingSize);
+
+        int parameterCount = 0;
+        for(int layer = 0; layer < layerCount; layer++){
+            parameterCount += network.getLayer(layer).paramTable().size();
+        }
+        header.putInt(parameterCount);
+
+        for(int layer = 0; layer < layerCount; layer++){
+            for(Map.Entry<String, INDArray> parameter : network.getLayer(layer).paramTable().entrySet()){
+                INDArray array = parameter.getValue();
+                Precision parameterPrecision = layer >= firstLstm && !parameter.getKey().equals("b") ? precision
+                                                                                                   : Precision.FLOAT;
+                header.putInt(layer);
+                putString(header, parameter.getKey());
+                putString(header, parameterPrecision.name());
+                header.putInt(array.rows());
+                header.putInt(array.columns());
+                arrays.add(array);
+                precisions.add(parameterPrecision);
+            }
+        }
+        // Every parameter starts on a float boundary, so it can be viewed as a FloatBuffer once mapped
+        pad(header);
+        header.flip();
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+
+        try(FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)){
+            channel.write(header);
+            for(int i = 0; i < arrays.size(); i++){
+                INDArray array = arrays.get(i);
+                float[] values = Nd4j.toFlattened('f', array).data().asFloat();
+                ByteBuffer buffer = encode(values, array.rows(), precisions.get(i));
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Memory-maps a model file.
+     *
+     * @param file The file written by {@link #export(MultiLayerNetwork, TokenSet, File, Precision)}.
+     * @return The model.
+     * @throws IOException If the file can't be read, or isn't a model file of a version which can be read.
+     */
+    public static CompactModel load(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+
+            if(buffer.getInt() != MAGIC){
+                throw new IOException(file + " is not a model file.");
+            }
+            int version = buffer.getInt();
+            if(version != VERSION && version != FLOAT_ONLY_VERSION){
+                throw new IOException(file + " is version " + version + ", but only versions up to " + VERSION +
+                                      " can be read.");
+            }
+
+            TokenSet tokenSet = TokenSet.valueOf(getString(buffer));
+            InputEncoding inputEncoding = InputEncoding.valueOf(getString(buffer));
+            int layerSize = buffer.getInt();
+            int embeddingSize = buffer.getInt();
+
+            int parameterCount = buffer.getInt();
+            int[] layers = new int[parameterCount];
+            String[] keys = new String[parameterCount];
+            Precision[] precisions = new Precision[parameterCount];
+            int[] rows = new int[parameterCount];
+            int[] columns = new int[parameterCount];
+            long length = 0;
+            for(int i = 0; i < parameterCount; i++){
+                layers[i] = buffer.getInt();
+                keys[i] = getString(buffer);
+                precisions[i] = version == FLOAT_ONLY_VERSION ? Precision.FLOAT : Precision.valueOf(getString(buffer));
+                rows[i] = buffer.getInt();
+                columns[i] = buffer.getInt();
+                length += encodedLength(precisions[i], rows[i], columns[i]);
+            }
+            while(buffer.position() % Float.BYTES != 0){
+                buffer.get();
+            }
+
+            if(buffer.remaining() != length){
+                throw new IOException(file + " is truncated.");
+            }
+
+            List<Parameter> parameters = new ArrayList<>(parameterCount);
+            for(int i = 0; i < parameterCount; i++){
+                ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                int dataLength = encodedLength(precisions[i], rows[i], columns[i]);
+                data.limit(dataLength);
+                buffer.position(buffer.position() + dataLength);
+                parameters.add(new Parameter(layers[i], keys[i], precisions[i], rows[i], columns[i], data));
+            }
+
+            return new CompactModel(tokenSet, inputEncoding, layerSize, embeddingSize, parameters);
+        }
+    }
+
+    /**
+     * Builds a network for generation from the stored weights. The network has no updater state, so it shouldn't be
+     * trained further. Weights stored at a lower precision are converted back to floats.
+     *
+     * @return The network.
+     */
+    public MultiLayerNetwork createNetwork() {
+        int length = 0;
+        for(Parameter parameter : parameters){
+            length += parameter.getLength();
+        }
+        float[] flattened = new float[length];
+        int position = 0;
+        for(Parameter parameter : parameters){
+            parameter.getValues().get(flattened, position, parameter.getLength());
+            position += parameter.getLength();
+        }
+
+        INDArray params = Nd4j.create(flattened, new int[]{1, flattened.length});
+        return new NetworkConfiguration(tokenSet, layerSize, 0, 0, inputEncoding, embeddingSize).createNetwork(params);
+    }
+
+    public TokenSet getTokenSet() {
+        return tokenSet;
+    }
+
+    public InputEncoding getInputEncoding() {
+        return inputEncoding;
+    }
+
+    /**
+     * @return The number of units in each LSTM layer.
+     */
+    public int getLayerSize() {
+        return layerSize;
+    }
+
+    /**
+     * @return The size of the embedding vectors, or 0 if the network takes one-hot input.
+     */
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    /**
+     * @return Every parameter in the network, in the order they are stored.
+     */
+    public List<Parameter> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @param layer The index of the layer in the network.
+     * @param key   The DL4J name of the parameter, e.g. "W", "RW" or "b".
+     * @return The parameter.
+     */
+    public Parameter getParameter(int layer, String key) {
+        for(Parameter parameter : parameters){
+            if(parameter.layer == layer && parameter.key.equals(key)){
+                return parameter;
+            }
+        }
+        throw new IllegalArgumentException("Layer " + layer + " has no parameter called " + key);
+    }
+
+    private static Layer layer(MultiLayerNetwork network, int layer) {
+        return network.getLayerWiseConfigurations().getConf(layer).getLayer();
+    }
+
+    private static int nOut(MultiLayerNetwork network, int layer) {
+        return (int) ((FeedForwardLayer) layer(network, layer)).getNOut();
+    }
+
+    /**
+     * Stores the values of a parameter, padded to a whole number of floats. An int8 parameter starts with the scale of
+     * each row, followed by the values divided by their row's scale and rounded. The scale maps the largest value in
+     * the row to 127.
+     *
+     * @param values The values in column-major order.
+     * @param rows   The number of rows in the parameter.
+     */
+    private static ByteBuffer encode(float[] values, int rows, Precision precision) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength(precision, rows, values.length / rows))
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        switch(precision){
+            case FLOAT:
+                for(float value : values){
+                    buffer.putFloat(value);
+                }
+                break;
+            case HALF:
+                for(float value : values){
+                    buffer.putShort(toHalf(value));
+                }
+                break;
+            case INT8:
+                float[] scales = new float[rows];
+                for(int i = 0; i < values.length; i++){
+                    scales[i % rows] = Math.max(scales[i % rows], Math.abs(values[i]));
+                }
+                for(int row = 0; row < rows; row++){
+                    scales[row] /= INT8_LIMIT;
+                    buffer.putFloat(scales[row]);
+                }
+                for(int i = 0; i < values.length; i++){
+                    float scale = scales[i % rows];
+                    buffer.put(scale == 0 ? 0 : (byte) Math.round(values[i] / scale));
+                }
+                break;
+        }
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return The number of bytes used to store a parameter, including the padding at the end.
+     */
+    private static int encodedLength(Precision precision, int rows, int columns) {
+        int length;
+        switch(precision){
+            case HALF:
+                length = rows * columns * Short.BYTES;
+                break;
+            case INT8:
+                length = rows * Float.BYTES + rows * columns;
+                break;
+            default:
+                length = rows * columns * Float.BYTES;
+        }
+        return (length + Float.BYTES - 1) / Float.BYTES * Float.BYTES;
+    }
+
+    private static void pad(ByteBuffer buffer) {
+        while(buffer.position() % Float.BYTES != 0){
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Converts a float to the nearest 16 bit float, rounding halfway cases up. Values too large for 16 bits become
+     * infinity, and values too small become 0.
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        if(exponent >= 31){
+            return (short) (sign | 0x7C00);
+        }
+        if(exponent <= 0){
+            // Too small for the exponent, so stored as a subnormal with the leading 1 in the mantissa
+            if(exponent < -10){
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            if(((mantissa >> (shift - 1)) & 1) != 0){
+                half++;
+            }
+            return (short) (sign | half);
+        }
+
+        // A carry out of the mantissa correctly moves on to the next exponent
+        int half = sign | exponent << 10 | mantissa >> 13;
+        if((mantissa & 0x1000) != 0){
+            half++;
+        }
+        return (short) half;
+    }
+
+    /**
+     * Converts a 16 bit float back to a float, which represents it exactly.
+     */
+    static float fromHalf(short value) {
+        int bits = value & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+
+        if(exponent == 0){
+            float subnormal = mantissa * 0x1p-24f;
+            return sign == 0 ? subnormal : -subnormal;
+        }
+        if(exponent == 31){
+            return Float.intBitsToFloat(sign | 0x7F800000 | mantissa << 13);
+        }
+        return Float.intBitsToFloat(sign | (exponent + 127 - 15) << 23 | mantissa << 13);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A single weight matrix or bias vector from one layer of the network.
+     */
+    public static class Parameter {
+        private final int layer;
+        private final String key;
+        private final Precision precision;
+        private final int rows;
+        private final int columns;
+        private final ByteBuffer data;
+
+        private Parameter(int layer, String key, Precision precision, int rows, int columns, ByteBuffer data) {
+            this.layer = layer;
+            this.key = key;
+            this.precision = precision;
+            this.rows = rows;
+            this.columns = columns;
+            this.data = data;
+        }
+
+        public int getLayer() {
+            return layer;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Precision getPrecision() {
+            return precision;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getColumns() {
+            return columns;
+        }
+
+        public int getLength() {
+            return rows * columns;
+        }
+
+        /**
+         * @return The values in column-major order, so value (row, column) is at (column * rows + row). Float values
+         *         are a read-only view of the file, while values stored at a lower precision are converted to floats.
+         */
+        public FloatBuffer getValues() {
+            FloatBuffer values;
+            switch(precision){
+                case HALF:
+                    values = FloatBuffer.allocate(getLength());
+                    for(int i = 0; i < getLength(); i++){
+                        values.put(fromHalf(data.getShort(i * Short.BYTES)));
+                    }
+                    break;
+                case INT8:
+                    FloatBuffer scales = getScales();
+                    ByteBuffer quantised = getQuantised();
+                    values = FloatBuffer.allocate(getLength());
+                    for(int i = 0; i < getLength(); i++){
+                        values.put(quantised.get(i) * scales.get(i % rows));
+                    }
+                    break;
+                default:
+                    values = data.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                    values.limit(getLength());
+                    return values.asReadOnlyBuffer();
+            }
+            values.flip();
+            return values.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return A read-only view of the int8 values, in column-major order. Each value should be multiplied by the
+         *         scale for its row.
+         */
+        public ByteBuffer getQuantised() {
+            checkInt8();
+            ByteBuffer quantised = data.duplicate();
+            quantised.position(rows * Float.BYTES);
+            quantised = quantised.slice();
+            quantised.limit(getLength());
+            return quantised.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return A read-only view of the scale of each row of the int8 values.
+         */
+        public FloatBuffer getScales() {
+            checkInt8();
+            FloatBuffer scales = data.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            scales.limit(rows);
+            return scales.asReadOnlyBuffer();
+        }
+
+        private void checkInt8() {
+            if(precision != Precision.INT8){
+                throw new IllegalStateException("Layer " + layer + " parameter " + key + " is stored as " + precision);
+            }
+        }
+    }
+}
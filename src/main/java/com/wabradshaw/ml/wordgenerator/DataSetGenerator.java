@@ -1,128 +1,132 @@
 package com.wabradshaw.ml.wordgenerator;
 
-import com.wabradshaw.ml.wordgenerator.tokenisation.Tokeniser;
-import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.factory.Nd4j;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.Random;
 
 public class DataSetGenerator {
 
-    private static final String FILENAME = "/phonemes.txt";
-    private static final int IGNORED_LINES = 126;
-
     private final TokenSet tokenSet;
-    private final Tokeniser tokeniser;
-    private final String[] contents;
+    private final TokenisedCorpus corpus;
+    private final InputEncoding inputEncoding;
+    private final DataSetVectoriser vectoriser;
+    private final MemoryMode memoryMode;
 
     public DataSetGenerator(TokenSet tokenSet){
-        this.tokenSet = tokenSet;
-        this.tokeniser = tokenSet.getTokeniser();
-        this.contents = loadFile();
+        this(tokenSet, InputEncoding.ONE_HOT);
     }
 
-    public DataSet getDataSet(int batchNumber, int batchSize, int maxWordLength) {
+    public DataSetGenerator(TokenSet tokenSet, InputEncoding inputEncoding){
+        this(TokenisedCorpus.load(tokenSet), inputEncoding);
+    }
 
-        String[] batchContents = Arrays.copyOfRange(this.contents,
-                                                    batchNumber*batchSize,
-                                                    batchNumber*batchSize + batchSize);
-
-        List<List<Integer>> tokens = Arrays.stream(batchContents)
-                                           .filter(x -> x != null)
-                                           .map(tokeniser::getRelevantWord)
-                                           .filter(x -> x != null)
-                                           .map(tokeniser::tokenise)
-                                           .filter(x -> x.size() <= maxWordLength)
-                                           .collect(Collectors.toList());
-
-        List<List<Integer>> mask = tokens.stream()
-                                         .map(line -> line.stream()
-                                                          .map(c -> c < 0 ? 0 : 1)
-                                                          .collect(Collectors.toList())
-                                         )
-                                         .collect(Collectors.toList());
-
-        return createDataSet(tokens, mask, maxWordLength);
+    public DataSetGenerator(TokenisedCorpus corpus, InputEncoding inputEncoding){
+        this(corpus, inputEncoding, MemoryMode.WORKSPACES);
     }
 
-    private String[] loadFile(){
-        try {
-            File file = new File(this.getClass().getResource(FILENAME).getFile());
+    /**
+     * @param corpus        The tokenised words to build batches from.
+     * @param inputEncoding How tokens are fed into the network.
+     * @param memoryMode    Whether the buffers behind each batch are recycled, or left for the garbage collector.
+     */
+    public DataSetGenerator(TokenisedCorpus corpus, InputEncoding inputEncoding, MemoryMode memoryMode){
+        this.tokenSet = corpus.getTokenSet();
+        this.corpus = corpus;
+        this.inputEncoding = inputEncoding;
+        this.vectoriser = new DataSetVectoriser(corpus, inputEncoding);
+        this.memoryMode = memoryMode;
+    }
 
-            Scanner lineCounter = new Scanner(file);
-            int lineCount = 0;
-            while(lineCounter.hasNextLine()){
-                lineCounter.nextLine();
-                lineCount++;
-            }
+    public TokenSet getTokenSet() {
+        return tokenSet;
+    }
 
-            Scanner scanner = new Scanner(file);
+    public MemoryMode getMemoryMode() {
+        return memoryMode;
+    }
 
-            String[] results = new String[lineCount - IGNORED_LINES];
+    public InputEncoding getInputEncoding() {
+        return inputEncoding;
+    }
 
-            int ignoredNumber = 0;
-            int lineNumber = 0;
-            while(scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if(ignoredNumber >= IGNORED_LINES){
-                    results[lineNumber] = line;
-                    lineNumber++;
-                } else {
-                    ignoredNumber++;
-                }
-            }
+    public TokenisedCorpus getCorpus() {
+        return corpus;
+    }
 
-            return results;
+    public DataSet getDataSet(int batchNumber, int batchSize, int maxWordLength) {
+        return getDataSet(batchNumber, batchSize, maxWordLength, null);
+    }
 
-        } catch(FileNotFoundException e){
-            throw new RuntimeException("Phonemes file could not be found.", e);
+    /**
+     * Builds the DataSet for one batch of the corpus, with the examples in a random order.
+     *
+     * @param batchNumber   The index of the batch within the corpus.
+     * @param batchSize     The number of words from the corpus used in each batch.
+     * @param maxWordLength The maximum number of tokens in a word. Longer words are ignored.
+     * @param seed          The seed used to shuffle the examples within the batch.
+     * @return The DataSet.
+     */
+    public DataSet getDataSet(int batchNumber, int batchSize, int maxWordLength, long seed) {
+        return getDataSet(batchNumber, batchSize, maxWordLength, new Random(seed));
+    }
+
+    /**
+     * Builds the DataSet for one batch of a {@link BatchPlan}, with the examples in a random order. The DataSet is
+     * padded to the length the plan gives for that batch.
+     *
+     * @param plan  The plan for the current epoch.
+     * @param batch The index of the batch within the plan.
+     * @param seed  The seed used to shuffle the examples within the batch.
+     * @return The DataSet.
+     */
+    public DataSet getDataSet(BatchPlan plan, int batch, long seed) {
+        int[] entries = new int[plan.getBatchSize(batch)];
+        int count = plan.getEntries(batch, entries);
+        shuffle(entries, count, new Random(seed));
+        return vectoriser.vectorise(entries, count, plan.getPaddedLength(batch), plan.getMaxWordLength());
+    }
+
+    /**
+     * Returns the buffers behind a DataSet built by this generator, so they can be reused for a later batch. The
+     * DataSet must not be used after this has been called. With {@link MemoryMode#UNMANAGED}, this does nothing, and
+     * every batch gets new buffers.
+     *
+     * @param dataSet The DataSet which is no longer needed.
+     */
+    public void recycle(DataSet dataSet) {
+        if(memoryMode == MemoryMode.WORKSPACES){
+            vectoriser.recycle(dataSet);
         }
     }
 
-    private DataSet createDataSet(List<List<Integer>> tokens, List<List<Integer>> mask, int maxWordLength){
-        INDArray input = Nd4j.zeros(new int[]{tokens.size(), tokenSet.getLength(), maxWordLength + 1}, 'f');
-        INDArray labels = Nd4j.zeros(new int[]{tokens.size(), tokenSet.getLength(), maxWordLength + 1}, 'f');
-        INDArray inputMask = Nd4j.zeros(new int[]{tokens.size(), maxWordLength + 1}, 'f');
-        INDArray labelsMask = Nd4j.zeros(new int[]{tokens.size(), maxWordLength + 1}, 'f');
-
-        for(int entryId = 0; entryId < tokens.size(); entryId ++){
-            List<Integer> entry = tokens.get(entryId);
-
-            input.putScalar(new int[]{entryId, 0, 0}, 1);
-            inputMask.putScalar(new int[]{entryId, 0}, 1);
-
-            int contentLength = Math.min(entry.size(), maxWordLength);
-            for(int charId = 0; charId < contentLength; charId++){
-                int c = entry.get(charId);
-                input.putScalar(new int[]{entryId, c, charId + 1}, 1);
-                labels.putScalar(new int[]{entryId, c, charId}, 1);
-                inputMask.putScalar(new int[]{entryId, charId + 1}, 1);
-                labelsMask.putScalar(new int[]{entryId, charId}, 1);
-            }
+    private DataSet getDataSet(int batchNumber, int batchSize, int maxWordLength, Random shuffle) {
+        int start = Math.min(batchNumber * batchSize, corpus.size());
+        int end = Math.min(start + batchSize, corpus.size());
 
-            // Add the end of file character (without masking) once the word is finished
-            if(contentLength < maxWordLength){
-                input.putScalar(new int[]{entryId, 1, contentLength + 1}, 1);
-                labels.putScalar(new int[]{entryId, 1, contentLength}, 1);
-                inputMask.putScalar(new int[]{entryId, contentLength + 1}, 1);
-                labelsMask.putScalar(new int[]{entryId, contentLength}, 1);
+        int[] entries = new int[end - start];
+        int count = 0;
+        for(int entry = start; entry < end; entry++){
+            if(corpus.length(entry) <= maxWordLength){
+                entries[count++] = entry;
             }
+        }
 
-            // Pad the output with masking characters
-            for(int charId = entry.size() + 1; charId < maxWordLength; charId++){
-                input.putScalar(new int[]{entryId, 1, charId + 1}, 1);
-                labels.putScalar(new int[]{entryId, 1, charId}, 1);
-                inputMask.putScalar(new int[]{entryId, charId + 1}, 0);
-                labelsMask.putScalar(new int[]{entryId, charId}, 0);
-            }
-            labels.putScalar(new int[]{entryId, 1 ,maxWordLength}, 1);
-            labelsMask.putScalar(new int[]{entryId, maxWordLength}, 0);
+        return createDataSet(entries, count, maxWordLength, shuffle);
+    }
+
+    private DataSet createDataSet(int[] entries, int count, int maxWordLength, Random shuffle) {
+        if(shuffle != null){
+            shuffle(entries, count, shuffle);
         }
+        return vectoriser.vectorise(entries, count, maxWordLength);
+    }
 
-        return new DataSet(input, labels, inputMask, labelsMask);
+    private static void shuffle(int[] entries, int count, Random random) {
+        for(int i = count - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            int entry = entries[i];
+            entries[i] = entries[j];
+            entries[j] = entry;
+        }
     }
 }
@@ -0,0 +1,238 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Converts words from a {@link TokenisedCorpus} into the input and label arrays, plus their masks, used to train the
+ * network. Labels are always one-hot, while the input depends on the {@link InputEncoding}.
+ *
+ * Rather than filling zeroed arrays one putScalar call at a time, the values are written straight into off-heap
+ * buffers in the 'f' layout the network uses, and the buffers are then wrapped as INDArrays. Once the network has
+ * finished with a batch it can be recycled. Only the cells that were set are cleared, and the buffers are reused for a
+ * later batch instead of allocating new ones. DataSets which are never recycled are left to the garbage collector.
+ *
+ * This is safe to use from multiple threads at once.
+ */
+public class DataSetVectoriser {
+
+    private static final int START_TOKEN_ID = 0;
+    private static final int EOF_TOKEN_ID = 1;
+
+    private final TokenisedCorpus corpus;
+    private final InputEncoding inputEncoding;
+    private final int tokenCount;
+    private final int inputSize;
+
+    private final Queue<BatchBuffers> pool = new ConcurrentLinkedQueue<>();
+    private final Map<BatchKey, BatchBuffers> inUse = new ConcurrentHashMap<>();
+    private final ReferenceQueue<INDArray> collected = new ReferenceQueue<>();
+
+    public DataSetVectoriser(TokenisedCorpus corpus, InputEncoding inputEncoding) {
+        this.corpus = corpus;
+        this.inputEncoding = inputEncoding;
+        this.tokenCount = corpus.getTokenSet().getLength();
+        this.inputSize = inputEncoding.getInputSize(corpus.getTokenSet());
+    }
+
+    /**
+     * Builds a DataSet from a series of words. Each word becomes one example of (maxWordLength + 1) time steps. The
+     * input starts with the start token, and both the input and the labels are padded with masked end of file tokens.
+     *
+     * @param entries       The indexes of the words in the corpus, in the order they should appear in the batch.
+     * @param count         The number of entries to use.
+     * @param maxWordLength The maximum number of tokens in a word. No entry can be longer than this.
+     * @return The DataSet.
+     */
+    public DataSet vectorise(int[] entries, int count, int maxWordLength) {
+        return vectorise(entries, count, maxWordLength, maxWordLength);
+    }
+
+    /**
+     * Builds a DataSet from a series of words, padded to a length shorter than the maximum word length. Each word
+     * becomes one example of (paddedLength + 1) time steps, so the longest words in the batch still get their end of
+     * file token unless they are at the maximum length.
+     *
+     * @param entries       The indexes of the words in the corpus, in the order they should appear in the batch.
+     * @param count         The number of entries to use.
+     * @param paddedLength  The number of tokens each word is padded to. No entry can be longer than this.
+     * @param maxWordLength The maximum number of tokens in a word. Words of this length have no end of file token.
+     * @return The DataSet.
+     */
+    public DataSet vectorise(int[] entries, int count, int paddedLength, int maxWordLength) {
+        int steps = paddedLength + 1;
+        BatchBuffers buffers = acquire(count * steps);
+
+        for(int row = 0; row < count; row++){
+            int entry = entries[row];
+            int contentLength = Math.min(corpus.length(entry), paddedLength);
+
+            for(int step = 0; step < steps; step++){
+                int inputToken = step == 0 ? START_TOKEN_ID
+                               : step <= contentLength ? corpus.getToken(entry, step - 1)
+                               : EOF_TOKEN_ID;
+                int labelToken = step < contentLength ? corpus.getToken(entry, step) : EOF_TOKEN_ID;
+
+                // Input keeps one unmasked end of file token after the word. Labels are unmasked up to and including
+                // the end of file token, unless the word was too long to have one.
+                boolean inputVisible = step <= contentLength + 1;
+                boolean labelVisible = step <= contentLength && step < maxWordLength;
+
+                int cell = row + count * step;
+                if(inputEncoding == InputEncoding.ONE_HOT){
+                    buffers.set(cell, oneHotIndex(row, inputToken, step, count), 1,
+                                oneHotIndex(row, labelToken, step, count), inputVisible, labelVisible);
+                } else {
+                    buffers.set(cell, cell, inputToken, oneHotIndex(row, labelToken, step, count),
+                                inputVisible, labelVisible);
+                }
+            }
+        }
+
+        long[] maskShape = new long[]{count, steps};
+        INDArray input = wrap(buffers.input, new long[]{count, inputSize, steps});
+        INDArray labels = wrap(buffers.labels, new long[]{count, tokenCount, steps});
+        INDArray inputMask = wrap(buffers.inputMask, maskShape);
+        INDArray labelsMask = wrap(buffers.labelsMask, maskShape);
+
+        inUse.put(new BatchKey(input, collected), buffers);
+        return new DataSet(input, labels, inputMask, labelsMask);
+    }
+
+    /**
+     * Returns the buffers behind a DataSet to the pool, so they can be reused for another batch. The DataSet must not
+     * be used after this has been called. DataSets that weren't built by this vectoriser are ignored.
+     *
+     * @param dataSet The DataSet which is no longer needed.
+     */
+    public void recycle(DataSet dataSet) {
+        BatchBuffers buffers = inUse.remove(new BatchKey(dataSet.getFeatures(), null));
+        if(buffers != null){
+            buffers.clear();
+            pool.add(buffers);
+        }
+    }
+
+    private int oneHotIndex(int row, int token, int step, int count) {
+        return row + count * (token + tokenCount * step);
+    }
+
+    private INDArray wrap(DataBuffer buffer, long[] shape) {
+        return Nd4j.create(buffer, shape, Nd4j.getStrides(shape, 'f'), 0, 'f');
+    }
+
+    /**
+     * Takes a set of buffers from the pool, or creates a new one if none of the pooled buffers are big enough.
+     */
+    private BatchBuffers acquire(int cells) {
+        forgetCollected();
+
+        BatchBuffers buffers;
+        while((buffers = pool.poll()) != null){
+            if(buffers.capacity >= cells){
+                return buffers;
+            }
+        }
+        return new BatchBuffers(cells, inputSize, tokenCount);
+    }
+
+    /**
+     * Stops tracking the buffers of DataSets which were garbage collected without being recycled, so the buffers can
+     * be collected too.
+     */
+    private void forgetCollected() {
+        Reference<? extends INDArray> reference;
+        while((reference = collected.poll()) != null){
+            inUse.remove(reference);
+        }
+    }
+
+    /**
+     * Identifies a batch by its input array, without stopping the array from being garbage collected. Keys are equal
+     * if they refer to the same array, or if both arrays have been collected and they are the same key.
+     */
+    private static class BatchKey extends WeakReference<INDArray> {
+        private final int hash;
+
+        private BatchKey(INDArray input, ReferenceQueue<INDArray> queue) {
+            super(input, queue);
+            this.hash = System.identityHashCode(input);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(this == other){
+                return true;
+            }
+            if(!(other instanceof BatchKey)){
+                return false;
+            }
+            INDArray input = get();
+            return input != null && input == ((BatchKey) other).get();
+        }
+    }
+
+    /**
+     * The off-heap storage for a single batch. Every time step of every example has exactly one non-zero cell in both
+     * the input and the labels, so the offsets of those cells are all that needs to be remembered to clear them again.
+     */
+    private static class BatchBuffers {
+        private final int capacity;
+        private final DataBuffer input;
+        private final DataBuffer labels;
+        private final DataBuffer inputMask;
+        private final DataBuffer labelsMask;
+
+        private final int[] inputHot;
+        private final int[] labelsHot;
+        private int hotCount;
+
+        private BatchBuffers(int capacity, int inputSize, int tokenCount) {
+            this.capacity = capacity;
+            this.input = Nd4j.createBuffer(new long[]{(long) capacity * inputSize}, Nd4j.dataType());
+            this.labels = Nd4j.createBuffer(new long[]{(long) capacity * tokenCount}, Nd4j.dataType());
+            this.inputMask = Nd4j.createBuffer(new long[]{capacity}, Nd4j.dataType());
+            this.labelsMask = Nd4j.createBuffer(new long[]{capacity}, Nd4j.dataType());
+            this.inputHot = new int[capacity];
+            this.labelsHot = new int[capacity];
+        }
+
+        private void set(int cell, int inputIndex, int inputValue, int labelIndex,
+                         boolean inputVisible, boolean labelVisible) {
+            input.put(inputIndex, (float) inputValue);
+            labels.put(labelIndex, 1f);
+            inputMask.put(cell, inputVisible ? 1f : 0f);
+            labelsMask.put(cell, labelVisible ? 1f : 0f);
+
+            inputHot[hotCount] = inputIndex;
+            labelsHot[hotCount] = labelIndex;
+            hotCount++;
+        }
+
+        /**
+         * Zeroes the hot cells from the last batch. The masks don't need clearing, as every cell in use is rewritten.
+         */
+        private void clear() {
+            for(int i = 0; i < hotCount; i++){
+                input.put(inputHot[i], 0f);
+                labels.put(labelsHot[i], 0f);
+            }
+            hotCount = 0;
+        }
+    }
+}
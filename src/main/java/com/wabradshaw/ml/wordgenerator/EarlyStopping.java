@@ -0,0 +1,73 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.util.ModelSerializer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides when to stop training, based on the loss on the held out words. Training should stop once the loss hasn't
+ * improved for a number of evaluations in a row. Whenever the loss improves, the evaluated network is written to the
+ * best model file, so the best network is kept even though training carries on past it.
+ *
+ * The best loss isn't part of a checkpoint, so after resuming, the first evaluation always counts as the best so far.
+ */
+public class EarlyStopping {
+
+    private final int patience;
+    private final double minImprovement;
+    private final File bestModelFile;
+
+    private HeldOutEvaluator.Result best;
+    private int withoutImprovement;
+
+    /**
+     * @param patience       The number of evaluations in a row without an improvement before training should stop.
+     * @param minImprovement How much lower the loss has to be than the best so far to count as an improvement.
+     * @param bestModelFile  Where to write the best network, or null to only keep it in memory.
+     */
+    public EarlyStopping(int patience, double minImprovement, File bestModelFile) {
+        if(patience < 1 || minImprovement < 0){
+            throw new IllegalArgumentException("The patience must be at least one, and the minimum improvement can't " +
+                                               "be negative.");
+        }
+        this.patience = patience;
+        this.minImprovement = minImprovement;
+        this.bestModelFile = bestModelFile;
+    }
+
+    /**
+     * Records the result of an evaluation, and keeps the network if it is the best so far.
+     *
+     * @param result The latest result. Results should be given in the order the epochs were trained.
+     * @return True if training should stop.
+     * @throws IOException If the best network can't be written.
+     */
+    public boolean update(HeldOutEvaluator.Result result) throws IOException {
+        if(best == null || result.getLoss() < best.getLoss() - minImprovement){
+            best = result;
+            withoutImprovement = 0;
+            if(bestModelFile != null){
+                bestModelFile.getAbsoluteFile().getParentFile().mkdirs();
+                ModelSerializer.writeModel(result.getNetwork(), bestModelFile, true);
+            }
+        } else {
+            withoutImprovement++;
+        }
+        return shouldStop();
+    }
+
+    /**
+     * @return True if the loss hasn't improved for enough evaluations in a row.
+     */
+    public boolean shouldStop() {
+        return withoutImprovement >= patience;
+    }
+
+    /**
+     * @return The result with the lowest loss so far, or null if nothing has been evaluated.
+     */
+    public HeldOutEvaluator.Result getBest() {
+        return best;
+    }
+}
@@ -0,0 +1,231 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Main which checks that an {@link LstmEngine} predicts the same tokens as the DL4J network it was exported from. For
+ * each {@link InputEncoding}, a network is trained for a few batches so that its weights aren't just their initial
+ * values, then exported at full precision. Words from the corpus are fed a token at a time through both the network,
+ * using {@link MultiLayerNetwork#rnnTimeStep} via a {@link NetworkPredictor}, and the engine, and the distributions
+ * they predict for the next token are compared.
+ *
+ * Half way through each batch every other row is dropped, as when finished words are dropped during generation, and
+ * at the end of each batch the stored state of the first row is compared as well. The report shows the largest
+ * difference in any probability and in any state value, the mean difference, and how often the most likely token is
+ * the same. Any difference above the tolerance means the engine doesn't match the network. Results are printed as a
+ * table and written to a CSV file.
+ */
+public class EngineValidationMain {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+    private static final int START_TOKEN_ID = 0;
+    private static final int EOF_TOKEN_ID = 1;
+
+    private static final InputEncoding[] INPUT_ENCODINGS = {InputEncoding.ONE_HOT, InputEncoding.EMBEDDING};
+    private static final int LAYER_SIZE = 200;
+    private static final double LEARNING_RATE = 0.2;
+    private static final int EMBEDDING_SIZE = 32;
+
+    private static final int TRAINING_BATCHES = 20;
+    private static final int TRAINING_BATCH_SIZE = 256;
+    private static final int MAX_WORD_LENGTH = 19;
+
+    private static final int WORDS_CHECKED = 2000;
+    private static final int BATCH_SIZE = 100;
+    private static final double TOLERANCE = 1e-5;
+
+    private static final int SEED = 1234;
+
+    private static final String OUTPUT_DIRECTORY = "target/engine-validation";
+    private static final String REPORT_FILENAME = "target/engine-validation.csv";
+
+    public static void main(String[] args) throws Exception {
+
+        TokenisedCorpus corpus = TokenisedCorpus.load(TOKEN_SET);
+        int[] checkedWords = sampleWords(corpus, new Random(SEED));
+
+        File directory = new File(OUTPUT_DIRECTORY);
+        directory.mkdirs();
+
+        System.out.println(String.format("%-10s %12s %10s %10s %12s %7s %7s",
+                                         "encoding", "predictions", "max diff", "mean diff", "max state", "top 1",
+                                         "match"));
+
+        boolean allMatch = true;
+        File reportFile = new File(REPORT_FILENAME);
+        try(PrintWriter report = new PrintWriter(reportFile, StandardCharsets.UTF_8.name())){
+            report.println("inputEncoding,predictions,maxDifference,meanDifference,maxStateDifference," +
+                           "top1Agreement,match");
+
+            for(InputEncoding inputEncoding : INPUT_ENCODINGS){
+                MultiLayerNetwork network = trainNetwork(inputEncoding);
+                File file = new File(directory, "model-" + inputEncoding.name().toLowerCase() +
+                                                CompactModel.EXTENSION);
+                CompactModel.export(network, TOKEN_SET, file);
+
+                Comparison comparison = compare(new NetworkPredictor(network, TOKEN_SET),
+                                                new LstmEngine(CompactModel.load(file)), corpus, checkedWords);
+                boolean match = comparison.maxDifference <= TOLERANCE && comparison.maxStateDifference <= TOLERANCE;
+                allMatch &= match;
+
+                System.out.println(String.format("%-10s %12d %10.2e %10.2e %12.2e %6.2f%% %7s",
+                                                 inputEncoding, comparison.predictions, comparison.maxDifference,
+                                                 comparison.getMeanDifference(), comparison.maxStateDifference,
+                                                 comparison.getTopOneAgreement() * 100, match ? "yes" : "NO"));
+                report.println(String.format("%s,%d,%.6e,%.6e,%.6e,%.6f,%b",
+                                             inputEncoding, comparison.predictions, comparison.maxDifference,
+                                             comparison.getMeanDifference(), comparison.maxStateDifference,
+                                             comparison.getTopOneAgreement(), match));
+            }
+        }
+
+        System.out.println((allMatch ? "The engine matches" : "The engine DOESN'T match") + " the network to within " +
+                           TOLERANCE + ". Report written to " + reportFile.getPath());
+    }
+
+    /**
+     * Creates a network and trains it for a few batches.
+     */
+    private static MultiLayerNetwork trainNetwork(InputEncoding inputEncoding) {
+        MultiLayerNetwork network = new NetworkConfiguration(TOKEN_SET, LAYER_SIZE, LEARNING_RATE, SEED, inputEncoding,
+                                                             EMBEDDING_SIZE).createNetwork();
+        WordDataSetIterator iterator = new WordDataSetIterator(new DataSetGenerator(TOKEN_SET, inputEncoding),
+                                                               TRAINING_BATCHES, TRAINING_BATCH_SIZE,
+                                                               MAX_WORD_LENGTH, new Random(SEED), 1, 2);
+        network.fit(iterator);
+        iterator.shutdown();
+        return network;
+    }
+
+    /**
+     * Picks words from the corpus to check the token distributions on.
+     */
+    private static int[] sampleWords(TokenisedCorpus corpus, Random random) {
+        int[] words = new int[WORDS_CHECKED];
+        for(int i = 0; i < words.length; i++){
+            words[i] = random.nextInt(corpus.size());
+        }
+        return words;
+    }
+
+    /**
+     * Feeds words from the corpus through the network and the engine a token at a time, and compares the
+     * distributions they predict for the next token, up to and including the end of file token.
+     */
+    private static Comparison compare(TokenPredictor reference, TokenPredictor candidate, TokenisedCorpus corpus,
+                                      int[] checkedWords) {
+        int tokenCount = TOKEN_SET.getLength();
+        int maxLength = 0;
+        for(int word : checkedWords){
+            maxLength = Math.max(maxLength, corpus.length(word));
+        }
+
+        int[][] words = new int[BATCH_SIZE][maxLength];
+        int[] lengths = new int[BATCH_SIZE];
+        int[] rowWords = new int[BATCH_SIZE];
+        int[] inputs = new int[BATCH_SIZE];
+        double[] expected = new double[BATCH_SIZE * tokenCount];
+        double[] actual = new double[BATCH_SIZE * tokenCount];
+        Comparison comparison = new Comparison();
+
+        for(int start = 0; start < checkedWords.length; start += BATCH_SIZE){
+            int rows = Math.min(BATCH_SIZE, checkedWords.length - start);
+            int longest = 0;
+            for(int row = 0; row < rows; row++){
+                lengths[row] = corpus.getTokens(checkedWords[start + row], words[row]);
+                longest = Math.max(longest, lengths[row]);
+                rowWords[row] = row;
+                inputs[row] = START_TOKEN_ID;
+            }
+
+            reference.reset(rows);
+            candidate.reset(rows);
+            for(int position = 0; position <= longest; position++){
+                if(position == longest / 2 && rows > 1){
+                    rows = dropAlternateRows(reference, candidate, rows, rowWords, inputs);
+                }
+
+                reference.step(inputs, rows, expected);
+                candidate.step(inputs, rows, actual);
+
+                for(int row = 0; row < rows; row++){
+                    int word = rowWords[row];
+                    // Rows whose word has already ended are still run, but not counted
+                    if(position <= lengths[word]){
+                        comparison.add(expected, actual, row * tokenCount, tokenCount);
+                    }
+                    inputs[row] = position < lengths[word] ? words[word][position] : EOF_TOKEN_ID;
+                }
+            }
+            comparison.addState(reference.getState(0), candidate.getState(0));
+        }
+        return comparison;
+    }
+
+    /**
+     * Keeps every other row of both predictors, along with the words and inputs for those rows.
+     *
+     * @return The number of rows left.
+     */
+    private static int dropAlternateRows(TokenPredictor reference, TokenPredictor candidate, int rows, int[] rowWords,
+                                         int[] inputs) {
+        int[] keep = new int[(rows + 1) / 2];
+        for(int i = 0; i < keep.length; i++){
+            keep[i] = 2 * i;
+            rowWords[i] = rowWords[keep[i]];
+            inputs[i] = inputs[keep[i]];
+        }
+        reference.selectRows(keep);
+        candidate.selectRows(keep);
+        return keep.length;
+    }
+
+    /**
+     * The differences between the distributions and states from the network and from the engine.
+     */
+    private static class Comparison {
+        private long predictions;
+        private long topOneMatches;
+        private double totalDifference;
+        private double maxDifference;
+        private double maxStateDifference;
+
+        private void add(double[] expected, double[] actual, int offset, int length) {
+            int expectedBest = offset;
+            int actualBest = offset;
+            for(int i = offset; i < offset + length; i++){
+                double difference = Math.abs(expected[i] - actual[i]);
+                totalDifference += difference;
+                maxDifference = Math.max(maxDifference, difference);
+                expectedBest = expected[i] > expected[expectedBest] ? i : expectedBest;
+                actualBest = actual[i] > actual[actualBest] ? i : actualBest;
+            }
+            if(expectedBest == actualBest){
+                topOneMatches++;
+            }
+            predictions++;
+        }
+
+        private void addState(float[] expected, float[] actual) {
+            if(expected.length != actual.length){
+                throw new IllegalStateException("The network and engine states are different sizes.");
+            }
+            for(int i = 0; i < expected.length; i++){
+                maxStateDifference = Math.max(maxStateDifference, Math.abs(expected[i] - actual[i]));
+            }
+        }
+
+        private double getMeanDifference() {
+            return totalDifference / (predictions * TOKEN_SET.getLength());
+        }
+
+        private double getTopOneAgreement() {
+            return topOneMatches / (double) predictions;
+        }
+    }
+}
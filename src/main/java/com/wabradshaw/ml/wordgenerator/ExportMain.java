@@ -0,0 +1,30 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+
+import java.io.File;
+
+/**
+ * Main which converts a training zip into a {@link CompactModel} file, which is much quicker to load for generation.
+ * The weights can be stored at a lower {@link Precision} to save space, at some cost to the quality of the words; run
+ * {@link QuantisationMain} to see how much.
+ */
+public class ExportMain {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+
+    private static final String FILENAME = "src/main/resources/generatedModelPhonemes";
+    private static final Precision PRECISION = Precision.FLOAT;
+
+    public static void main(String[] args) throws Exception {
+
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(FILENAME + ".zip", false);
+
+        File output = new File(FILENAME + CompactModel.EXTENSION);
+        CompactModel.export(network, TOKEN_SET, output, PRECISION);
+
+        System.out.println(String.format("Wrote %s at %s precision (%d KB, from a %d KB zip)", output, PRECISION,
+                                         output.length() / 1024, new File(FILENAME + ".zip").length() / 1024));
+    }
+}
@@ -0,0 +1,82 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.util.List;
+
+/**
+ * A {@link DataSetIterator} which passes everything through to another iterator. Subclasses override the calls they
+ * need to watch.
+ */
+abstract class ForwardingDataSetIterator implements DataSetIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final DataSetIterator iterator;
+
+    protected ForwardingDataSetIterator(DataSetIterator iterator) {
+        this.iterator = iterator;
+    }
+
+    @Override
+    public DataSet next() {
+        return iterator.next();
+    }
+
+    @Override
+    public DataSet next(int num) {
+        return iterator.next(num);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public int inputColumns() {
+        return iterator.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return iterator.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return iterator.resetSupported();
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return iterator.asyncSupported();
+    }
+
+    @Override
+    public void reset() {
+        iterator.reset();
+    }
+
+    @Override
+    public int batch() {
+        return iterator.batch();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        iterator.setPreProcessor(preProcessor);
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return iterator.getPreProcessor();
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return iterator.getLabels();
+    }
+}
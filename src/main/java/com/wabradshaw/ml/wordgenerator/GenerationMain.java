@@ -3,6 +3,8 @@ package com.wabradshaw.ml.wordgenerator;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
 
+import java.io.File;
+
 /**
  * Main which allows you to produce words from the neural network.
  */
@@ -13,13 +15,19 @@ public class GenerationMain {
     private static final String FILENAME = "src/main/resources/generatedModelV2x1200";
     private static final int WORDS = 300;
     private static final double MIN_LETTER_THRESHOLD = 0.01;
+    private static final MemoryMode MEMORY_MODE = MemoryMode.WORKSPACES;
 
     public static void main(String[] args) throws Exception {
 
-        WordGenerator wordGenerator = new WordGenerator(TOKEN_SET, MIN_LETTER_THRESHOLD);
+        WordGenerator wordGenerator = new WordGenerator(TOKEN_SET, MIN_LETTER_THRESHOLD, true);
 
-        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(FILENAME + ".zip");
+        // The compact model is much quicker to load, so it's used if it has been exported
+        File compactModel = new File(FILENAME + CompactModel.EXTENSION);
+        MultiLayerNetwork network = compactModel.exists() ? CompactModel.load(compactModel).createNetwork()
+                                                          : ModelSerializer.restoreMultiLayerNetwork(FILENAME + ".zip");
+        MEMORY_MODE.apply(network);
 
         wordGenerator.generate(WORDS, network).forEach(System.out::println);
+        System.out.println(MEMORY_MODE + ": " + wordGenerator.getLastMemoryUsage());
     }
 }
\ No newline at end of file
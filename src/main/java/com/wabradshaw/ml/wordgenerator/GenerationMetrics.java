@@ -0,0 +1,131 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the throughput and latency of a {@link WordGenerationService}. Counts cover every request since the service
+ * started, while the latency percentiles cover the most recent requests.
+ *
+ * This is safe to use from multiple threads at once.
+ */
+public class GenerationMetrics {
+
+    private static final int LATENCY_WINDOW = 4096;
+
+    private final long started = System.nanoTime();
+    private final long[] latencies = new long[LATENCY_WINDOW];
+
+    private long requests;
+    private long words;
+    private long batches;
+    private long totalLatency;
+
+    /**
+     * Records a request which has been completed.
+     *
+     * @param words   The number of words in the request.
+     * @param latency The time between the request being submitted and completed, in nanoseconds.
+     */
+    public synchronized void recordRequest(int words, long latency) {
+        latencies[(int) (requests % LATENCY_WINDOW)] = latency;
+        this.requests++;
+        this.words += words;
+        this.totalLatency += latency;
+    }
+
+    /**
+     * Records a batch of words which has been generated.
+     */
+    public synchronized void recordBatch() {
+        this.batches++;
+    }
+
+    /**
+     * @return The metrics as they are now.
+     */
+    public synchronized Snapshot snapshot() {
+        long[] recent = Arrays.copyOf(latencies, (int) Math.min(requests, LATENCY_WINDOW));
+        Arrays.sort(recent);
+        return new Snapshot(System.nanoTime() - started, requests, words, batches, totalLatency, recent);
+    }
+
+    /**
+     * The metrics at a single point in time. All times are in milliseconds.
+     */
+    public static class Snapshot {
+        private final double elapsed;
+        private final long requests;
+        private final long words;
+        private final long batches;
+        private final double meanLatency;
+        private final long[] recentLatencies;
+
+        private Snapshot(long elapsed, long requests, long words, long batches, long totalLatency,
+                         long[] recentLatencies) {
+            this.elapsed = toMillis(elapsed);
+            this.requests = requests;
+            this.words = words;
+            this.batches = batches;
+            this.meanLatency = requests == 0 ? 0 : toMillis(totalLatency) / requests;
+            this.recentLatencies = recentLatencies;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getWords() {
+            return words;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        /**
+         * @return The mean number of words generated in each batch.
+         */
+        public double getMeanBatchSize() {
+            return batches == 0 ? 0 : words * 1.0 / batches;
+        }
+
+        /**
+         * @return The number of words generated per second since the service started.
+         */
+        public double getWordsPerSecond() {
+            return elapsed == 0 ? 0 : words * 1000.0 / elapsed;
+        }
+
+        /**
+         * @return The mean time taken to complete a request, including the time spent waiting in the queue.
+         */
+        public double getMeanLatency() {
+            return meanLatency;
+        }
+
+        /**
+         * @param percentile The percentile, between 0 and 100.
+         * @return The latency of that percentile of recent requests.
+         */
+        public double getLatencyPercentile(double percentile) {
+            if(recentLatencies.length == 0){
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * recentLatencies.length) - 1;
+            return toMillis(recentLatencies[Math.max(0, Math.min(index, recentLatencies.length - 1))]);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d words in %d batches (%.1f per batch), %.1f words/s, " +
+                                 "latency mean %.1fms p50 %.1fms p95 %.1fms p99 %.1fms",
+                                 requests, words, batches, getMeanBatchSize(), getWordsPerSecond(), meanLatency,
+                                 getLatencyPercentile(50), getLatencyPercentile(95), getLatencyPercentile(99));
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how well a network predicts words it wasn't trained on. Every token of every held out word is scored,
+ * using the label masks to skip the padding, to give the mean loss per token, the perplexity and the fraction of
+ * tokens the network ranks first.
+ *
+ * The held out words are vectorised once, up front. Evaluating copies the network on the calling thread, then scores
+ * the copies on background threads, with the batches shared between them. This means training can carry on while the
+ * previous epoch is evaluated.
+ */
+public class HeldOutEvaluator implements AutoCloseable {
+
+    // Stops a probability which has underflowed to zero from giving an infinite loss
+    private static final double MIN_PROBABILITY = 1e-30;
+
+    // Sized by the first batch each thread scores, which is the largest, then reused for every batch after it
+    private static final String WORKSPACE_ID = "HELD_OUT_EVALUATION";
+    private static final WorkspaceConfiguration WORKSPACE = WorkspaceConfiguration.builder()
+            .initialSize(0)
+            .overallocationLimit(0.2)
+            .policyAllocation(AllocationPolicy.STRICT)
+            .policyLearning(LearningPolicy.FIRST_LOOP)
+            .policySpill(SpillPolicy.REALLOCATE)
+            .build();
+
+    private final List<DataSet> batches = new ArrayList<>();
+    private final int threads;
+    private final ExecutorService executor;
+    private final MemoryMode memoryMode;
+
+    /**
+     * @param dataSetGenerator The generator for the held out corpus. With {@link MemoryMode#WORKSPACES}, the arrays
+     *                         used to score each batch are allocated in a workspace which is reused for every batch.
+     * @param batchSize        The number of words scored at once.
+     * @param maxWordLength    The maximum number of tokens in a word. Longer words are ignored.
+     * @param threads          The number of threads to score the batches on.
+     */
+    public HeldOutEvaluator(DataSetGenerator dataSetGenerator, int batchSize, int maxWordLength, int threads) {
+        if(threads < 1){
+            throw new IllegalArgumentException("At least one thread is needed to evaluate the network.");
+        }
+
+        BatchPlan plan = BatchPlan.sequential(dataSetGenerator.getCorpus(), Integer.MAX_VALUE, batchSize,
+                                              maxWordLength);
+        for(int batch = 0; batch < plan.getBatchCount(); batch++){
+            if(plan.getBatchSize(batch) > 0){
+                batches.add(dataSetGenerator.getDataSet(plan, batch, batch));
+            }
+        }
+        if(batches.isEmpty()){
+            throw new IllegalArgumentException("There are no held out words to evaluate the network on.");
+        }
+
+        this.memoryMode = dataSetGenerator.getMemoryMode();
+        this.threads = Math.min(threads, batches.size());
+        this.executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "held-out-evaluator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts evaluating the network as it is now. The network is copied before this returns, so it can carry on
+     * training straight away.
+     *
+     * @param network The network to evaluate.
+     * @param epoch   The epoch the network has just finished, to label the result.
+     * @return A future which completes with the result.
+     */
+    public Future<Result> evaluate(MultiLayerNetwork network, int epoch) {
+        MultiLayerNetwork snapshot = network.clone();
+        snapshot.setListeners(Collections.emptyList());
+
+        List<CompletableFuture<Totals>> parts = new ArrayList<>();
+        for(int thread = 0; thread < threads; thread++){
+            MultiLayerNetwork copy = thread == 0 ? snapshot : snapshot.clone();
+            int first = thread;
+            parts.add(CompletableFuture.supplyAsync(() -> score(copy, first, threads), executor));
+        }
+
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Totals totals = new Totals();
+            for(CompletableFuture<Totals> part : parts){
+                totals.add(part.join());
+            }
+            return new Result(epoch, totals, snapshot);
+        });
+    }
+
+    /**
+     * Evaluates the network on the calling thread, without copying it. This is slower than {@link #evaluate}, but
+     * doesn't need any extra copies of the network in memory.
+     *
+     * @param network The network to evaluate. This mustn't be trained or used on another thread until this returns.
+     * @param epoch   The epoch the network has just finished, to label the result.
+     * @return The result, which doesn't keep the network.
+     */
+    public Result evaluateNow(MultiLayerNetwork network, int epoch) {
+        return new Result(epoch, score(network, 0, 1), null);
+    }
+
+    /**
+     * Stops the background threads once any evaluations in progress have finished.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Scores every batch from the first one given, skipping the batches scored by the other threads.
+     */
+    private Totals score(MultiLayerNetwork network, int first, int step) {
+        Totals totals = new Totals();
+        for(int batch = first; batch < batches.size(); batch += step){
+            if(memoryMode == MemoryMode.WORKSPACES){
+                try(MemoryWorkspace workspace = Nd4j.getWorkspaceManager()
+                                                    .getAndActivateWorkspace(WORKSPACE, WORKSPACE_ID)){
+                    score(network, batches.get(batch), workspace, totals);
+                }
+            } else {
+                score(network, batches.get(batch), null, totals);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Scores a single batch, adding it to the totals. If there's a workspace, the output and every array computed
+     * from it are allocated in it, so only the totals can be used once it has closed.
+     */
+    private void score(MultiLayerNetwork network, DataSet dataSet, MemoryWorkspace workspace, Totals totals) {
+        INDArray mask = dataSet.getLabelsMaskArray();
+        INDArray labels = dataSet.getLabels();
+        INDArray output = network.output(dataSet.getFeatures(), false, dataSet.getFeaturesMaskArray(), mask,
+                                         workspace);
+
+        // Probability of the correct token at each time step. Padded steps are set to 1 so they add no loss.
+        INDArray correctProbabilities = output.mul(labels).sum(1);
+        correctProbabilities.muli(mask).addi(mask.rsub(1));
+        Transforms.max(correctProbabilities, MIN_PROBABILITY, false);
+
+        totals.loss -= Transforms.log(correctProbabilities, false).sumNumber().doubleValue();
+        totals.correct += Nd4j.argMax(output, 1).eq(Nd4j.argMax(labels, 1)).muli(mask).sumNumber().doubleValue();
+        totals.tokens += mask.sumNumber().doubleValue();
+        totals.words += dataSet.numExamples();
+    }
+
+    private static class Totals {
+        private double loss;
+        private double correct;
+        private double tokens;
+        private long words;
+
+        private void add(Totals other) {
+            loss += other.loss;
+            correct += other.correct;
+            tokens += other.tokens;
+            words += other.words;
+        }
+    }
+
+    /**
+     * How well the network did on the held out words after an epoch.
+     */
+    public static class Result {
+        private final int epoch;
+        private final double loss;
+        private final double accuracy;
+        private final long tokens;
+        private final long words;
+        private final MultiLayerNetwork network;
+
+        private Result(int epoch, Totals totals, MultiLayerNetwork network) {
+            this.epoch = epoch;
+            this.loss = totals.loss / totals.tokens;
+            this.accuracy = totals.correct / totals.tokens;
+            this.tokens = Math.round(totals.tokens);
+            this.words = totals.words;
+            this.network = network;
+        }
+
+        /**
+         * @return The epoch the network had just finished when it was evaluated.
+         */
+        public int getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * @return The mean cross entropy per token, in nats.
+         */
+        public double getLoss() {
+            return loss;
+        }
+
+        /**
+         * @return The mean cross entropy per word, in nats. Unlike the loss per token, this can be compared between
+         *         networks trained on different {@link TokenSet}s.
+         */
+        public double getLossPerWord() {
+            return loss * tokens / words;
+        }
+
+        /**
+         * @return The perplexity per token, i.e. the number of equally likely tokens the network is as unsure as.
+         */
+        public double getPerplexity() {
+            return Math.exp(loss);
+        }
+
+        /**
+         * @return The fraction of tokens which the network gave the highest probability.
+         */
+        public double getAccuracy() {
+            return accuracy;
+        }
+
+        public long getTokens() {
+            return tokens;
+        }
+
+        public long getWords() {
+            return words;
+        }
+
+        /**
+         * @return The copy of the network which was evaluated, which isn't changed by any further training, or null
+         *         if it was evaluated with {@link #evaluateNow}.
+         */
+        public MultiLayerNetwork getNetwork() {
+            return network;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("held out loss %.4f, perplexity %.3f, accuracy %.2f%% over %d tokens",
+                                 loss, getPerplexity(), accuracy * 100, tokens);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trains a number of networks with different settings at once, to find the best settings. Trials are compared using
+ * successive halving: every trial is trained for a few epochs and scored on held out words, then only the best fraction
+ * carry on, for that many times more epochs. This repeats until a single trial is left or the maximum number of epochs
+ * is reached, so most of the time is spent on the most promising settings.
+ *
+ * Trials run on a fixed number of threads, and a trial only starts training once its estimated memory fits in what is
+ * left of the memory budget. Each trial is scored on its own thread, without copying its network, so scoring fits in
+ * the same estimate. Dropped trials only keep their results, and only the best trial's network is kept at the end. Each
+ * {@link TokenSet}'s corpus is loaded and split once, and then shared between all of the trials which use it, along
+ * with the held out words they are scored on. Trials are ranked by their loss per held out word rather than per token,
+ * so trials with different token sets can be compared, and every trial is scored on the same words whatever its maximum
+ * word length.
+ *
+ * Every trial's results after every round are written to a single CSV file, as soon as the round has finished.
+ */
+public class HyperparameterSweep {
+
+    private static final int BYTES_PER_MB = 1 << 20;
+    private static final int DATA_THREADS = 1;
+    private static final int PREFETCH_BATCHES = 2;
+    private static final int EVALUATION_BATCH_SIZE = 1024;
+    private static final int TBPTT_LENGTH = 5;
+
+    private static final Comparator<Trial> BY_LOSS =
+            Comparator.comparingDouble(trial -> trial.result == null ? Double.NaN : trial.result.getLossPerWord());
+
+    private final int concurrentTrials;
+    private final int memoryBudgetMb;
+    private final int minEpochs;
+    private final int maxEpochs;
+    private final int reduction;
+    private final int batchesPerEpoch;
+    private final double heldOutFraction;
+    private final int seed;
+
+    /**
+     * @param concurrentTrials The most trials to train at once. Usually no more than the number of cores.
+     * @param memoryBudgetMb   The most memory the trials being trained at once should need, in MB.
+     * @param minEpochs        The number of epochs every trial is trained for before the first trials are dropped.
+     * @param maxEpochs        The most epochs any trial is trained for.
+     * @param reduction        The factor the number of trials is divided by, and the number of epochs multiplied by,
+     *                         after each round. Usually 2 or 3.
+     * @param batchesPerEpoch  The number of batches in an epoch. Each epoch uses different words from the corpus.
+     * @param heldOutFraction  The fraction of each corpus held out to score the trials.
+     * @param seed             The seed for the network parameters, the held out words and the order of the batches.
+     */
+    public HyperparameterSweep(int concurrentTrials, int memoryBudgetMb, int minEpochs, int maxEpochs, int reduction,
+                               int batchesPerEpoch, double heldOutFraction, int seed) {
+        if(concurrentTrials < 1 || memoryBudgetMb < 1 || minEpochs < 1 || maxEpochs < minEpochs || reduction < 2
+           || batchesPerEpoch < 1){
+            throw new IllegalArgumentException("The sweep needs at least one trial at a time, a memory budget, at " +
+                                               "least one epoch and batch, and a reduction of at least two.");
+        }
+        this.concurrentTrials = concurrentTrials;
+        this.memoryBudgetMb = memoryBudgetMb;
+        this.minEpochs = minEpochs;
+        this.maxEpochs = maxEpochs;
+        this.reduction = reduction;
+        this.batchesPerEpoch = batchesPerEpoch;
+        this.heldOutFraction = heldOutFraction;
+        this.seed = seed;
+    }
+
+    /**
+     * Lists every combination of the given settings.
+     *
+     * @return The configurations, with the last setting changing fastest.
+     */
+    public static List<Configuration> grid(TokenSet[] tokenSets, int[] layerSizes, double[] learningRates,
+                                           int[] batchSizes, int[] maxWordLengths) {
+        List<Configuration> configurations = new ArrayList<>();
+        for(TokenSet tokenSet : tokenSets){
+            for(int layerSize : layerSizes){
+                for(double learningRate : learningRates){
+                    for(int batchSize : batchSizes){
+                        for(int maxWordLength : maxWordLengths){
+                            configurations.add(new Configuration(tokenSet, layerSize, learningRate, batchSize,
+                                                                 maxWordLength));
+                        }
+                    }
+                }
+            }
+        }
+        return configurations;
+    }
+
+    /**
+     * Picks some of the configurations at random, for a random search rather than trying all of them.
+     *
+     * @param configurations The configurations to choose from, e.g. from {@link #grid}.
+     * @param count          The number of configurations to pick. This is capped at the number available.
+     * @param random         The source of randomness used to pick them.
+     * @return The chosen configurations.
+     */
+    public static List<Configuration> random(List<Configuration> configurations, int count, Random random) {
+        List<Configuration> shuffled = new ArrayList<>(configurations);
+        Collections.shuffle(shuffled, random);
+        return new ArrayList<>(shuffled.subList(0, Math.min(count, shuffled.size())));
+    }
+
+    /**
+     * Runs the sweep.
+     *
+     * @param configurations The settings to try.
+     * @param resultsFile    The CSV file to write each trial's results to after every round.
+     * @return Every trial, best first. Trials which were dropped are ranked by their last result.
+     * @throws IOException If the results file can't be written.
+     */
+    public List<Trial> run(List<Configuration> configurations, File resultsFile) throws IOException {
+        if(configurations.isEmpty()){
+            throw new IllegalArgumentException("There are no configurations to try.");
+        }
+
+        // Every trial is scored on the same words, so they must fit the shortest maximum word length
+        int evaluationWordLength = Integer.MAX_VALUE;
+        for(Configuration configuration : configurations){
+            evaluationWordLength = Math.min(evaluationWordLength, configuration.maxWordLength);
+        }
+
+        Map<TokenSet, DataSetGenerator> generators = new EnumMap<>(TokenSet.class);
+        Map<TokenSet, HeldOutEvaluator> evaluators = new EnumMap<>(TokenSet.class);
+        List<Trial> trials = new ArrayList<>();
+        for(Configuration configuration : configurations){
+            TokenSet tokenSet = configuration.tokenSet;
+            if(!generators.containsKey(tokenSet)){
+                TokenisedCorpus.Split split = TokenisedCorpus.load(tokenSet).split(heldOutFraction, seed);
+                generators.put(tokenSet, new DataSetGenerator(split.getTraining(), InputEncoding.ONE_HOT));
+                evaluators.put(tokenSet, new HeldOutEvaluator(new DataSetGenerator(split.getHeldOut(),
+                                                                                   InputEncoding.ONE_HOT),
+                                                              EVALUATION_BATCH_SIZE, evaluationWordLength, 1));
+            }
+            trials.add(new Trial(trials.size(), configuration, generators.get(tokenSet), evaluators.get(tokenSet)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrentTrials, runnable -> {
+            Thread thread = new Thread(runnable, "sweep-trial");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore memory = new Semaphore(memoryBudgetMb);
+
+        resultsFile.getAbsoluteFile().getParentFile().mkdirs();
+        try(PrintWriter results = new PrintWriter(resultsFile, StandardCharsets.UTF_8.name())){
+            results.println("trial,tokenSet,layerSize,learningRate,batchSize,maxWordLength,round,epochs,seconds," +
+                            "lossPerWord,lossPerToken,perplexity,accuracy,outcome");
+
+            List<Trial> remaining = new ArrayList<>(trials);
+            int epochs = minEpochs;
+            for(int round = 0; ; round++){
+                runRound(executor, memory, remaining, epochs);
+                remaining.sort(BY_LOSS);
+
+                boolean last = remaining.size() == 1 || epochs == maxEpochs;
+                int kept = last ? 0 : Math.max(1, remaining.size() / reduction);
+                for(int rank = 0; rank < remaining.size(); rank++){
+                    Trial trial = remaining.get(rank);
+                    String outcome = last ? (rank == 0 ? "best" : "finished") : (rank < kept ? "continued" : "dropped");
+                    results.println(trial.toCsv(round, outcome));
+                    if(last && rank == 0){
+                        trial.stop();
+                    } else if(rank >= kept){
+                        trial.drop();
+                    }
+                }
+                results.flush();
+
+                if(last){
+                    break;
+                }
+                remaining = new ArrayList<>(remaining.subList(0, kept));
+                epochs = Math.min(epochs * reduction, maxEpochs);
+            }
+
+        } finally {
+            executor.shutdownNow();
+            for(Trial trial : trials){
+                trial.stop();
+            }
+            for(HeldOutEvaluator evaluator : evaluators.values()){
+                evaluator.close();
+            }
+        }
+
+        trials.sort(BY_LOSS);
+        return trials;
+    }
+
+    /**
+     * Trains every remaining trial up to a number of epochs, waiting until they have all finished.
+     */
+    private void runRound(ExecutorService executor, Semaphore memory, List<Trial> trials, int epochs) {
+        List<Future<?>> running = new ArrayList<>();
+        for(Trial trial : trials){
+            // A trial bigger than the whole budget still runs, just on its own
+            int memoryMb = (int) Math.min(memoryBudgetMb, trial.configuration.estimateMemory() / BYTES_PER_MB + 1);
+            running.add(executor.submit(() -> {
+                memory.acquireUninterruptibly(memoryMb);
+                try {
+                    trial.train(epochs);
+                } finally {
+                    memory.release(memoryMb);
+                }
+            }));
+        }
+
+        for(Future<?> future : running){
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the trials to finish.", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("A trial failed.", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * The settings for a single trial.
+     */
+    public static class Configuration {
+        private final TokenSet tokenSet;
+        private final int layerSize;
+        private final double learningRate;
+        private final int batchSize;
+        private final int maxWordLength;
+
+        public Configuration(TokenSet tokenSet, int layerSize, double learningRate, int batchSize,
+                             int maxWordLength) {
+            this.tokenSet = tokenSet;
+            this.layerSize = layerSize;
+            this.learningRate = learningRate;
+            this.batchSize = batchSize;
+            this.maxWordLength = maxWordLength;
+        }
+
+        public TokenSet getTokenSet() {
+            return tokenSet;
+        }
+
+        public int getLayerSize() {
+            return layerSize;
+        }
+
+        public double getLearningRate() {
+            return learningRate;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public int getMaxWordLength() {
+            return maxWordLength;
+        }
+
+        /**
+         * Roughly estimates the memory needed to train a network with these settings. This counts the parameters,
+         * their gradients and updater state, the batches being prepared and used, the activations for one segment
+         * of truncated backpropagation, and the activations for scoring a batch of held out words.
+         *
+         * @return The estimate in bytes.
+         */
+        public long estimateMemory() {
+            long tokens = tokenSet.getLength();
+            long parameters = 4L * layerSize * (tokens + layerSize + 1)
+                              + 4L * layerSize * (layerSize + layerSize + 1)
+                              + tokens * (layerSize + 1);
+            long batch = (long) batchSize * (maxWordLength + 1) * (2 * tokens + 2);
+            long activations = (long) batchSize * TBPTT_LENGTH * (2 * 10 * layerSize + 3 * tokens);
+            long evaluation = (long) EVALUATION_BATCH_SIZE * (maxWordLength + 1) * (2 * 6 * layerSize + 3 * tokens);
+            return Float.BYTES * (3 * parameters + (PREFETCH_BATCHES + 2) * batch + activations + evaluation);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s, %d units, learning rate %s, %d words per batch, max word length %d",
+                                 tokenSet, layerSize, learningRate, batchSize, maxWordLength);
+        }
+    }
+
+    /**
+     * A network being trained with one configuration, and how well it has done so far.
+     */
+    public class Trial {
+
+        private final int id;
+        private final Configuration configuration;
+        private final DataSetGenerator dataSetGenerator;
+        private final HeldOutEvaluator evaluator;
+
+        private MultiLayerNetwork network;
+        private WordDataSetIterator iterator;
+        private int epochs;
+        private long nanos;
+        private HeldOutEvaluator.Result result;
+
+        private Trial(int id, Configuration configuration, DataSetGenerator dataSetGenerator,
+                      HeldOutEvaluator evaluator) {
+            this.id = id;
+            this.configuration = configuration;
+            this.dataSetGenerator = dataSetGenerator;
+            this.evaluator = evaluator;
+        }
+
+        /**
+         * Trains the network until it has been trained for a number of epochs, then scores it. The network is only
+         * created the first time it is trained, so it doesn't take up memory while waiting to start.
+         */
+        private void train(int targetEpochs) {
+            long start = System.nanoTime();
+            if(network == null){
+                network = new NetworkConfiguration(configuration.tokenSet, configuration.layerSize,
+                                                   configuration.learningRate, seed).createNetwork();
+                iterator = new WordDataSetIterator(dataSetGenerator, Batching.SHUFFLED, batchesPerEpoch,
+                                                   configuration.batchSize, configuration.maxWordLength,
+                                                   new Random(seed), DATA_THREADS, PREFETCH_BATCHES);
+            }
+
+            for(; epochs < targetEpochs; epochs++){
+                network.fit(iterator);
+            }
+
+            result = evaluator.evaluateNow(network, epochs - 1);
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Stops the trial's background threads. The network is kept.
+         */
+        private void stop() {
+            if(iterator != null){
+                iterator.shutdown();
+                iterator = null;
+            }
+        }
+
+        /**
+         * Stops the trial's background threads, and lets its network be garbage collected. The last result is kept.
+         */
+        private void drop() {
+            stop();
+            network = null;
+        }
+
+        private String toCsv(int round, String outcome) {
+            return String.format("%d,%s,%d,%s,%d,%d,%d,%d,%.3f,%.6f,%.6f,%.4f,%.6f,%s",
+                                 id, configuration.tokenSet, configuration.layerSize, configuration.learningRate,
+                                 configuration.batchSize, configuration.maxWordLength, round, epochs,
+                                 nanos / (double) TimeUnit.SECONDS.toNanos(1), result.getLossPerWord(),
+                                 result.getLoss(), result.getPerplexity(), result.getAccuracy(), outcome);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Configuration getConfiguration() {
+            return configuration;
+        }
+
+        /**
+         * @return The number of epochs the trial was trained for before it finished or was dropped.
+         */
+        public int getEpochs() {
+            return epochs;
+        }
+
+        /**
+         * @return The score on the held out words after the last epoch the trial was trained for.
+         */
+        public HeldOutEvaluator.Result getResult() {
+            return result;
+        }
+
+        /**
+         * @return The trained network if this was the best trial, or null if it was dropped or didn't finish.
+         */
+        public MultiLayerNetwork getNetwork() {
+            return network;
+        }
+
+        @Override
+        public String toString() {
+            return "Trial " + id + " (" + configuration + ") after " + epochs + " epochs: " + result;
+        }
+    }
+}
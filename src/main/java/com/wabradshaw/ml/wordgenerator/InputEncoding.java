@@ -0,0 +1,44 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.conf.layers.EmbeddingSequenceLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * The ways tokens can be fed into the network.
+ */
+public enum InputEncoding {
+
+    /**
+     * Each token is a one-hot vector over the whole {@link TokenSet}, so inputs have the shape
+     * [batch, tokenSet.getLength(), timeSteps].
+     */
+    ONE_HOT,
+
+    /**
+     * Each token is a single index into the {@link TokenSet}, so inputs have the shape [batch, 1, timeSteps]. An
+     * embedding layer in front of the first LSTM turns each index into a dense vector.
+     */
+    EMBEDDING;
+
+    /**
+     * Works out which encoding an existing network expects, based on its first layer.
+     *
+     * @param network The network.
+     * @return The encoding used by that network.
+     */
+    public static InputEncoding of(MultiLayerNetwork network) {
+        if(network.getLayerWiseConfigurations().getConf(0).getLayer() instanceof EmbeddingSequenceLayer){
+            return EMBEDDING;
+        } else {
+            return ONE_HOT;
+        }
+    }
+
+    /**
+     * @param tokenSet The {@link TokenSet} being encoded.
+     * @return The size of the second dimension of the input for a single time step.
+     */
+    public int getInputSize(TokenSet tokenSet) {
+        return this == ONE_HOT ? tokenSet.getLength() : 1;
+    }
+}
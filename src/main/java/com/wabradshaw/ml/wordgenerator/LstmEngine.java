@@ -0,0 +1,447 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Runs a trained network for generation in plain Java, without ND4J or DL4J. The weights are loaded from a
+ * {@link CompactModel}, so a generation worker never has to start the native backend.
+ *
+ * The network is the one built by {@link NetworkConfiguration}: an optional embedding, two LSTM layers and a softmax
+ * output layer. Each LSTM layer computes its four gates for every row of the batch at once, as
+ * z = x.W + h.RW + b. The weight matrices are stored row-major, and the loops go over each weight row once per time
+ * step, applying it to every row of the batch while it is still in cache. One-hot inputs just pick out a single row of
+ * the input weights. Weights stored as {@link Precision#INT8} are kept as bytes, and each row is scaled as it's used.
+ *
+ * All of the working space is allocated up front, and only grows if a bigger batch is used, so a time step doesn't
+ * allocate anything. Like a network, an engine stores its state between time steps, so can't be used by more than one
+ * thread at once.
+ *
+ * This is quicker than DL4J for the small batches used by beam search and by generating a few words at a time, where
+ * DL4J's overhead per time step dominates. For large batches DL4J's BLAS calls are quicker.
+ */
+public class LstmEngine implements TokenPredictor {
+
+    // Int8 weight rows are converted to floats once per time step when there are at least this many rows in the batch,
+    // rather than being converted separately for every row
+    private static final int DEQUANTISE_ROWS = 4;
+
+    private final CompactModel model;
+    private final TokenSet tokenSet;
+    private final int tokenCount;
+    private final int layerSize;
+    private final int gateSize;
+
+    // The embedding, which is null if the network takes one-hot input
+    private final float[] embedding;
+    private final float[] embeddingBias;
+    private final int embeddingSize;
+
+    private final LstmLayer[] layers;
+
+    private final Weights outputWeights;
+    private final float[] outputBias;
+
+    private int capacity;
+    private float[] gates;
+    private float[] logits;
+    private float[] embedded;
+    private float[] spare;
+
+    /**
+     * @param model The trained network.
+     */
+    public LstmEngine(CompactModel model) {
+        this.model = model;
+        this.tokenSet = model.getTokenSet();
+        this.tokenCount = tokenSet.getLength();
+        this.layerSize = model.getLayerSize();
+        this.gateSize = 4 * layerSize;
+
+        int layer = 0;
+        if(model.getInputEncoding() == InputEncoding.EMBEDDING){
+            this.embeddingSize = model.getEmbeddingSize();
+            this.embedding = rowMajor(model.getParameter(layer, "W"));
+            this.embeddingBias = hasParameter(model, layer, "b") ? rowMajor(model.getParameter(layer, "b"))
+                                                                 : new float[embeddingSize];
+            layer++;
+        } else {
+            this.embeddingSize = 0;
+            this.embedding = null;
+            this.embeddingBias = null;
+        }
+
+        this.layers = new LstmLayer[2];
+        for(int i = 0; i < layers.length; i++, layer++){
+            layers[i] = new LstmLayer(new Weights(model.getParameter(layer, "W")),
+                                      new Weights(model.getParameter(layer, "RW")),
+                                      rowMajor(model.getParameter(layer, "b")));
+        }
+
+        this.outputWeights = new Weights(model.getParameter(layer, "W"));
+        this.outputBias = rowMajor(model.getParameter(layer, "b"));
+
+        ensureCapacity(1);
+    }
+
+    public TokenSet getTokenSet() {
+        return tokenSet;
+    }
+
+    /**
+     * @return The number of bytes used to hold the weights, not including the working space.
+     */
+    public long getWeightSize() {
+        long size = (long) outputWeights.getSize() + outputBias.length * Float.BYTES;
+        if(embedding != null){
+            size += (long) (embedding.length + embeddingBias.length) * Float.BYTES;
+        }
+        for(LstmLayer layer : layers){
+            size += layer.inputWeights.getSize() + layer.recurrentWeights.getSize() + layer.bias.length * Float.BYTES;
+        }
+        return size;
+    }
+
+    @Override
+    public void reset(int rows) {
+        ensureCapacity(rows);
+        for(LstmLayer layer : layers){
+            layer.clear(rows);
+        }
+    }
+
+    @Override
+    public void step(int[] tokens, int rows, double[] probabilities) {
+        ensureCapacity(rows);
+
+        LstmLayer first = layers[0];
+        if(embedding == null){
+            first.startGates(rows);
+            for(int row = 0; row < rows; row++){
+                first.inputWeights.addRow(tokens[row], 1f, gates, row * gateSize);
+            }
+        } else {
+            for(int row = 0; row < rows; row++){
+                System.arraycopy(embedding, tokens[row] * embeddingSize, embedded, row * embeddingSize,
+                                 embeddingSize);
+                add(embeddingBias, 0, embedded, row * embeddingSize, embeddingSize, 1f);
+            }
+            first.startGates(rows);
+            first.addInput(embedded, embeddingSize, rows);
+        }
+        first.finish(rows);
+
+        for(int i = 1; i < layers.length; i++){
+            layers[i].startGates(rows);
+            layers[i].addInput(layers[i - 1].h, layerSize, rows);
+            layers[i].finish(rows);
+        }
+
+        softmax(layers[layers.length - 1].h, rows, probabilities);
+    }
+
+    @Override
+    public void selectRows(int[] keep) {
+        ensureCapacity(keep.length);
+        for(LstmLayer layer : layers){
+            layer.h = gather(layer.h, keep);
+            layer.c = gather(layer.c, keep);
+        }
+    }
+
+    @Override
+    public float[] getState(int row) {
+        float[] state = new float[layers.length * 2 * layerSize];
+        for(int i = 0; i < layers.length; i++){
+            System.arraycopy(layers[i].h, row * layerSize, state, 2 * i * layerSize, layerSize);
+            System.arraycopy(layers[i].c, row * layerSize, state, (2 * i + 1) * layerSize, layerSize);
+        }
+        return state;
+    }
+
+    @Override
+    public void setState(float[] state, int rows) {
+        if(state.length != layers.length * 2 * layerSize){
+            throw new IllegalArgumentException("The state doesn't match the size of the network.");
+        }
+        ensureCapacity(rows);
+        for(int i = 0; i < layers.length; i++){
+            for(int row = 0; row < rows; row++){
+                System.arraycopy(state, 2 * i * layerSize, layers[i].h, row * layerSize, layerSize);
+                System.arraycopy(state, (2 * i + 1) * layerSize, layers[i].c, row * layerSize, layerSize);
+            }
+        }
+    }
+
+    /**
+     * @return The {@link CompactModel} the engine was loaded from.
+     */
+    @Override
+    public Object getModel() {
+        return model;
+    }
+
+    /**
+     * Copies the chosen rows of a state array into the spare array, and swaps the two over.
+     *
+     * @return The array now holding the chosen rows.
+     */
+    private float[] gather(float[] state, int[] keep) {
+        float[] result = spare;
+        for(int row = 0; row < keep.length; row++){
+            System.arraycopy(state, keep[row] * layerSize, result, row * layerSize, layerSize);
+        }
+        spare = state;
+        return result;
+    }
+
+    /**
+     * Works out the output layer, then the softmax, for every row.
+     */
+    private void softmax(float[] h, int rows, double[] probabilities) {
+        for(int row = 0; row < rows; row++){
+            System.arraycopy(outputBias, 0, logits, row * tokenCount, tokenCount);
+        }
+        multiplyAdd(h, layerSize, outputWeights, logits, rows);
+
+        for(int row = 0; row < rows; row++){
+            int offset = row * tokenCount;
+            float max = Float.NEGATIVE_INFINITY;
+            for(int token = 0; token < tokenCount; token++){
+                max = Math.max(max, logits[offset + token]);
+            }
+            double sum = 0;
+            for(int token = 0; token < tokenCount; token++){
+                double exp = Math.exp(logits[offset + token] - max);
+                probabilities[offset + token] = exp;
+                sum += exp;
+            }
+            for(int token = 0; token < tokenCount; token++){
+                probabilities[offset + token] /= sum;
+            }
+        }
+    }
+
+    /**
+     * Grows the working space, if needed, so it can hold a batch with this many rows.
+     */
+    private void ensureCapacity(int rows) {
+        if(rows <= capacity){
+            return;
+        }
+        int previous = capacity;
+        capacity = Math.max(rows, capacity * 2);
+
+        gates = new float[capacity * gateSize];
+        logits = new float[capacity * tokenCount];
+        embedded = new float[capacity * embeddingSize];
+        spare = new float[capacity * layerSize];
+        for(LstmLayer layer : layers){
+            layer.grow(previous);
+        }
+    }
+
+    /**
+     * Adds x.W to out, where x has a row per example of the batch. Each row of W is read once and applied to every
+     * example, so it stays in cache while it's used.
+     */
+    private static void multiplyAdd(float[] x, int inputSize, Weights weights, float[] out, int rows) {
+        int outputSize = weights.columns;
+        boolean dequantise = weights.quantised != null && rows >= DEQUANTISE_ROWS;
+        for(int k = 0; k < inputSize; k++){
+            if(dequantise){
+                weights.dequantise(k);
+            }
+            for(int row = 0; row < rows; row++){
+                float value = x[row * inputSize + k];
+                if(value == 0f){
+                    continue;
+                }
+                if(dequantise){
+                    add(weights.dequantised, 0, out, row * outputSize, outputSize, value);
+                } else {
+                    weights.addRow(k, value, out, row * outputSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds (scale * source) to a section of the destination. This is the inner loop of every matrix product.
+     */
+    private static void add(float[] source, int sourceOffset, float[] destination, int destinationOffset, int length,
+                            float scale) {
+        for(int i = 0; i < length; i++){
+            destination[destinationOffset + i] += scale * source[sourceOffset + i];
+        }
+    }
+
+    /**
+     * Adds (scale * source) to a section of the destination, where the source holds int8 values.
+     */
+    private static void add(byte[] source, int sourceOffset, float[] destination, int destinationOffset, int length,
+                            float scale) {
+        for(int i = 0; i < length; i++){
+            destination[destinationOffset + i] += scale * source[sourceOffset + i];
+        }
+    }
+
+    private static float sigmoid(float x) {
+        return (float) (1 / (1 + Math.exp(-x)));
+    }
+
+    private static boolean hasParameter(CompactModel model, int layer, String key) {
+        for(CompactModel.Parameter parameter : model.getParameters()){
+            if(parameter.getLayer() == layer && parameter.getKey().equals(key)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies a parameter out of the model file, converting it from column-major to row-major order.
+     */
+    private static float[] rowMajor(CompactModel.Parameter parameter) {
+        int rows = parameter.getRows();
+        int columns = parameter.getColumns();
+        FloatBuffer values = parameter.getValues();
+
+        float[] result = new float[rows * columns];
+        for(int column = 0; column < columns; column++){
+            for(int row = 0; row < rows; row++){
+                result[row * columns + column] = values.get(column * rows + row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A weight matrix stored row-major, either as floats, or as int8 values with a scale for each row.
+     */
+    private static class Weights {
+        private final int columns;
+        private final float[] values;
+        private final byte[] quantised;
+        private final float[] scales;
+        private final float[] dequantised;
+
+        private Weights(CompactModel.Parameter parameter) {
+            this.columns = parameter.getColumns();
+            if(parameter.getPrecision() == Precision.INT8){
+                int rows = parameter.getRows();
+                ByteBuffer stored = parameter.getQuantised();
+
+                this.values = null;
+                this.quantised = new byte[rows * columns];
+                this.scales = new float[rows];
+                this.dequantised = new float[columns];
+                parameter.getScales().get(scales);
+                for(int column = 0; column < columns; column++){
+                    for(int row = 0; row < rows; row++){
+                        quantised[row * columns + column] = stored.get(column * rows + row);
+                    }
+                }
+            } else {
+                this.values = rowMajor(parameter);
+                this.quantised = null;
+                this.scales = null;
+                this.dequantised = null;
+            }
+        }
+
+        /**
+         * Adds (scale * row) to a section of the destination.
+         */
+        private void addRow(int row, float scale, float[] destination, int destinationOffset) {
+            if(values != null){
+                add(values, row * columns, destination, destinationOffset, columns, scale);
+            } else {
+                add(quantised, row * columns, destination, destinationOffset, columns, scale * scales[row]);
+            }
+        }
+
+        /**
+         * Converts an int8 row to floats, in the dequantised array.
+         */
+        private void dequantise(int row) {
+            int offset = row * columns;
+            float scale = scales[row];
+            for(int i = 0; i < columns; i++){
+                dequantised[i] = scale * quantised[offset + i];
+            }
+        }
+
+        private int getSize() {
+            return values != null ? values.length * Float.BYTES : quantised.length + scales.length * Float.BYTES;
+        }
+    }
+
+    /**
+     * The weights and state of one LSTM layer. DL4J orders the four gates within z as the block input, then the
+     * forget, output and input gates, each layerSize wide.
+     */
+    private class LstmLayer {
+        private final Weights inputWeights;
+        private final Weights recurrentWeights;
+        private final float[] bias;
+
+        private float[] h = new float[0];
+        private float[] c = new float[0];
+
+        private LstmLayer(Weights inputWeights, Weights recurrentWeights, float[] bias) {
+            this.inputWeights = inputWeights;
+            this.recurrentWeights = recurrentWeights;
+            this.bias = bias;
+        }
+
+        private void grow(int previousRows) {
+            float[] newH = new float[capacity * layerSize];
+            float[] newC = new float[capacity * layerSize];
+            System.arraycopy(h, 0, newH, 0, Math.min(h.length, previousRows * layerSize));
+            System.arraycopy(c, 0, newC, 0, Math.min(c.length, previousRows * layerSize));
+            h = newH;
+            c = newC;
+        }
+
+        private void clear(int rows) {
+            Arrays.fill(h, 0, rows * layerSize, 0f);
+            Arrays.fill(c, 0, rows * layerSize, 0f);
+        }
+
+        /**
+         * Starts the gates from the bias plus the recurrent input from the previous time step.
+         */
+        private void startGates(int rows) {
+            for(int row = 0; row < rows; row++){
+                System.arraycopy(bias, 0, gates, row * gateSize, gateSize);
+            }
+            multiplyAdd(h, layerSize, recurrentWeights, gates, rows);
+        }
+
+        private void addInput(float[] input, int inputSize, int rows) {
+            multiplyAdd(input, inputSize, inputWeights, gates, rows);
+        }
+
+        /**
+         * Applies the gate activations, and updates the cell state and output.
+         */
+        private void finish(int rows) {
+            for(int row = 0; row < rows; row++){
+                int z = row * gateSize;
+                int state = row * layerSize;
+                for(int unit = 0; unit < layerSize; unit++){
+                    float blockInput = (float) Math.tanh(gates[z + unit]);
+                    float forget = sigmoid(gates[z + layerSize + unit]);
+                    float output = sigmoid(gates[z + 2 * layerSize + unit]);
+                    float input = sigmoid(gates[z + 3 * layerSize + unit]);
+
+                    float cell = forget * c[state + unit] + input * blockInput;
+                    c[state + unit] = cell;
+                    h[state + unit] = output * (float) Math.tanh(cell);
+                }
+            }
+        }
+    }
+}
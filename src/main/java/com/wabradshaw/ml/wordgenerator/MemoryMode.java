@@ -0,0 +1,71 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * How ND4J's off-heap memory is managed while training, evaluating and generating.
+ */
+public enum MemoryMode {
+
+    /**
+     * Every array is allocated separately, and only freed once the garbage collector finds it is no longer used. This
+     * includes each training batch and the temporary arrays for every layer and time step.
+     */
+    UNMANAGED(WorkspaceMode.NONE),
+
+    /**
+     * The temporary arrays for each layer are allocated in workspaces, which are reused from one batch or time step to
+     * the next instead of being left for the garbage collector. Training batches are vectorised into recycled buffers.
+     */
+    WORKSPACES(WorkspaceMode.ENABLED);
+
+    private static final String MAX_BYTES_PROPERTY = "org.bytedeco.javacpp.maxbytes";
+    private static final String MAX_PHYSICAL_BYTES_PROPERTY = "org.bytedeco.javacpp.maxphysicalbytes";
+
+    private final WorkspaceMode workspaceMode;
+
+    MemoryMode(WorkspaceMode workspaceMode) {
+        this.workspaceMode = workspaceMode;
+    }
+
+    /**
+     * @return The DL4J workspace mode used for both training and inference.
+     */
+    public WorkspaceMode getWorkspaceMode() {
+        return workspaceMode;
+    }
+
+    /**
+     * Switches an existing network, e.g. one loaded from a file, to this mode for both training and inference.
+     *
+     * @param network The network.
+     */
+    public void apply(MultiLayerNetwork network) {
+        network.getLayerWiseConfigurations().setTrainingWorkspaceMode(workspaceMode);
+        network.getLayerWiseConfigurations().setInferenceWorkspaceMode(workspaceMode);
+    }
+
+    /**
+     * Caps the off-heap memory used by ND4J arrays. Once the cap is reached, the garbage collector is run to free any
+     * arrays which are no longer used, and if that isn't enough an OutOfMemoryError is thrown. The physical memory of
+     * the whole process, which also covers workspaces, is capped at this plus the maximum heap size.
+     *
+     * This has to be called before ND4J is first used.
+     *
+     * @param maxBytes The most off-heap memory to use, in bytes.
+     */
+    public static void limitOffHeap(long maxBytes) {
+        if(maxBytes < 1){
+            throw new IllegalArgumentException("The off-heap limit must be at least one byte.");
+        }
+        System.setProperty(MAX_BYTES_PROPERTY, Long.toString(maxBytes));
+        System.setProperty(MAX_PHYSICAL_BYTES_PROPERTY, Long.toString(maxBytes + Runtime.getRuntime().maxMemory()));
+
+        // The limits are read once, when JavaCPP is first loaded
+        if(Pointer.maxBytes() != maxBytes){
+            throw new IllegalStateException("The off-heap limit has to be set before ND4J is first used.");
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.bytedeco.javacpp.Pointer;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The memory used over a period of time, such as an epoch of training or a call to generate words. This is the peak
+ * off-heap memory, and the number of garbage collections and the time they took.
+ *
+ * Off-heap memory is measured in two ways. The off-heap bytes are those JavaCPP has allocated for ND4J arrays, which
+ * doesn't include workspaces. The physical bytes are the resident memory of the whole process, which includes the
+ * workspaces and the heap. Both are only as accurate as how often {@link #sample()} is called. Memory and garbage
+ * collection are shared by the whole process, so they include anything else running at the same time.
+ *
+ * Samples can be taken from several threads at once, e.g. by the replicas of a network being trained in parallel.
+ */
+public class MemoryUsage {
+
+    private static final List<GarbageCollectorMXBean> COLLECTORS = ManagementFactory.getGarbageCollectorMXBeans();
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    private final long start = System.nanoTime();
+    private final long startCollections = collections();
+    private final long startCollectionMillis = collectionMillis();
+
+    private long peakOffHeapBytes;
+    private long peakPhysicalBytes;
+
+    private boolean finished;
+    private long nanos;
+    private long collectionCount;
+    private long collectionMillis;
+
+    private MemoryUsage() {
+        sample();
+    }
+
+    /**
+     * @return A new period, starting now.
+     */
+    public static MemoryUsage start() {
+        return new MemoryUsage();
+    }
+
+    /**
+     * Checks the memory in use, updating the peaks. This should be called whenever the memory is likely to be at its
+     * highest, e.g. after each batch or time step.
+     */
+    public synchronized void sample() {
+        long offHeapBytes = Pointer.totalBytes();
+        peakOffHeapBytes = Math.max(peakOffHeapBytes, offHeapBytes);
+
+        // Reading the physical memory needs JavaCPP's native library, which is loaded before any array is allocated
+        if(offHeapBytes > 0){
+            peakPhysicalBytes = Math.max(peakPhysicalBytes, Pointer.physicalBytes());
+        }
+    }
+
+    /**
+     * Takes a final sample, and ends the period. Nothing changes once it has finished.
+     *
+     * @return This.
+     */
+    public synchronized MemoryUsage finish() {
+        if(!finished){
+            sample();
+            nanos = System.nanoTime() - start;
+            collectionCount = collections() - startCollections;
+            collectionMillis = collectionMillis() - startCollectionMillis;
+            finished = true;
+        }
+        return this;
+    }
+
+    /**
+     * @return The most off-heap memory allocated for ND4J arrays, outside of workspaces.
+     */
+    public long getPeakOffHeapBytes() {
+        return peakOffHeapBytes;
+    }
+
+    /**
+     * @return The most physical memory used by the process, or 0 if ND4J wasn't used.
+     */
+    public long getPeakPhysicalBytes() {
+        return peakPhysicalBytes;
+    }
+
+    /**
+     * @return The length of the period in milliseconds.
+     */
+    public double getMillis() {
+        return nanos / 1e6;
+    }
+
+    /**
+     * @return The number of garbage collections during the period.
+     */
+    public long getCollectionCount() {
+        return collectionCount;
+    }
+
+    /**
+     * @return The time spent on garbage collection during the period, in milliseconds.
+     */
+    public long getCollectionMillis() {
+        return collectionMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "peak off-heap %.1f MB, peak physical %.1f MB, %d GCs taking %d ms",
+                             peakOffHeapBytes / BYTES_PER_MB, peakPhysicalBytes / BYTES_PER_MB, collectionCount,
+                             collectionMillis);
+    }
+
+    private static long collections() {
+        long count = 0;
+        for(GarbageCollectorMXBean collector : COLLECTORS){
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for(GarbageCollectorMXBean collector : COLLECTORS){
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}
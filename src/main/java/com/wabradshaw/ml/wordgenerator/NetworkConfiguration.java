@@ -3,11 +3,13 @@ package com.wabradshaw.ml.wordgenerator;
 import org.deeplearning4j.nn.conf.BackpropType;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.EmbeddingSequenceLayer;
 import org.deeplearning4j.nn.conf.layers.LSTM;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.learning.config.RmsProp;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 
@@ -19,6 +21,9 @@ public class NetworkConfiguration {
     private final TokenSet tokenSet;
     private final double learningRate;
     private final int seed;
+    private final InputEncoding inputEncoding;
+    private final int embeddingSize;
+    private final MemoryMode memoryMode;
 
     private final MultiLayerConfiguration config;
 
@@ -29,10 +34,40 @@ public class NetworkConfiguration {
      * @param seed The seed to use for randomness
      */
     public NetworkConfiguration(TokenSet tokenSet, int layerSize, double learningRate, int seed) {
+        this(tokenSet, layerSize, learningRate, seed, InputEncoding.ONE_HOT, 0);
+    }
+
+    /**
+     * @param tokenSet The enum representing the string tokens that could be generated by the network
+     * @param layerSize The number of short term memory nodes in each hidden layer of the network (i.e. not in/out)
+     * @param learningRate How quickly the network should update parameters
+     * @param seed The seed to use for randomness
+     * @param inputEncoding How tokens are fed into the network
+     * @param embeddingSize The size of the dense vector for each token. Only used with {@link InputEncoding#EMBEDDING}
+     */
+    public NetworkConfiguration(TokenSet tokenSet, int layerSize, double learningRate, int seed,
+                                InputEncoding inputEncoding, int embeddingSize) {
+        this(tokenSet, layerSize, learningRate, seed, inputEncoding, embeddingSize, MemoryMode.WORKSPACES);
+    }
+
+    /**
+     * @param tokenSet The enum representing the string tokens that could be generated by the network
+     * @param layerSize The number of short term memory nodes in each hidden layer of the network (i.e. not in/out)
+     * @param learningRate How quickly the network should update parameters
+     * @param seed The seed to use for randomness
+     * @param inputEncoding How tokens are fed into the network
+     * @param embeddingSize The size of the dense vector for each token. Only used with {@link InputEncoding#EMBEDDING}
+     * @param memoryMode Whether the network uses workspaces for its temporary arrays when training and predicting
+     */
+    public NetworkConfiguration(TokenSet tokenSet, int layerSize, double learningRate, int seed,
+                                InputEncoding inputEncoding, int embeddingSize, MemoryMode memoryMode) {
         this.tokenSet = tokenSet;
         this.layerSize = layerSize;
         this.learningRate = learningRate;
         this.seed = seed;
+        this.inputEncoding = inputEncoding;
+        this.embeddingSize = embeddingSize;
+        this.memoryMode = memoryMode;
 
         this.config = buildConfig();
     }
@@ -46,29 +81,58 @@ public class NetworkConfiguration {
         return network;
     }
 
+    /**
+     * Creates a new Neural Network based on the settings in this config object, using existing parameters instead of
+     * initialising them.
+     *
+     * @param params The flattened parameters of a network with the same settings, as a row vector.
+     */
+    public MultiLayerNetwork createNetwork(INDArray params){
+        MultiLayerNetwork network = new MultiLayerNetwork(this.config);
+        network.init(params, false);
+        return network;
+    }
+
     /**
      * Builds the configuration object for Neural Networks using these settings.
      *
      * @return A {@link MultiLayerConfiguration} defining the Neural Network.
      */
     private MultiLayerConfiguration buildConfig() {
-        return new NeuralNetConfiguration.Builder()
+        NeuralNetConfiguration.ListBuilder builder = new NeuralNetConfiguration.Builder()
                 .seed(seed)
                 .l2(0.0001)
                 .weightInit(WeightInit.XAVIER)
                 .updater(new RmsProp(learningRate))
-                .list()
-                .layer(0, new LSTM.Builder()
+                .trainingWorkspaceMode(memoryMode.getWorkspaceMode())
+                .inferenceWorkspaceMode(memoryMode.getWorkspaceMode())
+                .list();
+
+        // With embedded input, the first LSTM is fed dense vectors looked up from the token indexes rather than
+        // one-hot vectors, which saves multiplying a mostly zero input.
+        int layer = 0;
+        int lstmInputSize = tokenSet.getLength();
+        if(inputEncoding == InputEncoding.EMBEDDING) {
+            builder.layer(layer++, new EmbeddingSequenceLayer.Builder()
                                        .nIn(tokenSet.getLength())
+                                       .nOut(embeddingSize)
+                                       .activation(Activation.IDENTITY)
+                                       .build());
+            lstmInputSize = embeddingSize;
+        }
+
+        return builder
+                .layer(layer++, new LSTM.Builder()
+                                       .nIn(lstmInputSize)
                                        .nOut(layerSize)
                                        .activation(Activation.TANH)
                                        .build())
-                .layer(1, new LSTM.Builder()
+                .layer(layer++, new LSTM.Builder()
                                        .nIn(layerSize)
                                        .nOut(layerSize)
                                        .activation(Activation.TANH)
                                        .build())
-                .layer(2, new RnnOutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                .layer(layer, new RnnOutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
                                                  .activation(Activation.SOFTMAX)
                                                  .nIn(layerSize)
                                                  .nOut(tokenSet.getLength())
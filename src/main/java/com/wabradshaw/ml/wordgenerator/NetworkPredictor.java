@@ -0,0 +1,198 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.layers.recurrent.LSTM;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link TokenPredictor} which runs a DL4J network, using its stored RNN state. The network's configuration, such as
+ * its workspace mode, is left as it is.
+ */
+class NetworkPredictor implements TokenPredictor {
+
+    private final MultiLayerNetwork network;
+    private final Object model;
+    private final InputEncoding inputEncoding;
+    private final int inputSize;
+    private final int tokenCount;
+
+    // The same input array is reused while the number of rows stays the same. Only the cells for the previous tokens
+    // need to be reset.
+    private INDArray input;
+    private DataBuffer inputData;
+    private int inputRows;
+    private int[] inputTokens = new int[0];
+
+    /**
+     * @param network  The trained network. Its stored RNN state is cleared and then overwritten.
+     * @param tokenSet The {@link TokenSet} the network was trained on.
+     */
+    NetworkPredictor(MultiLayerNetwork network, TokenSet tokenSet) {
+        this(network, tokenSet, network);
+    }
+
+    /**
+     * @param network  The trained network. Its stored RNN state is cleared and then overwritten.
+     * @param tokenSet The {@link TokenSet} the network was trained on.
+     * @param model    The model reported by {@link #getModel()}, e.g. the network a clone was made from, so that clones
+     *                 of the same network share their {@link PrefixCache} entries.
+     */
+    NetworkPredictor(MultiLayerNetwork network, TokenSet tokenSet, Object model) {
+        this.network = network;
+        this.model = model;
+        this.inputEncoding = InputEncoding.of(network);
+        this.inputSize = inputEncoding.getInputSize(tokenSet);
+        this.tokenCount = tokenSet.getLength();
+    }
+
+    @Override
+    public void reset(int rows) {
+        network.rnnClearPreviousState();
+        input = null;
+    }
+
+    @Override
+    public void step(int[] tokens, int rows, double[] probabilities) {
+        if(input == null || inputRows != rows){
+            createInput(tokens, rows);
+        } else {
+            for(int row = 0; row < rows; row++){
+                setInput(row, inputTokens[row], tokens[row]);
+                inputTokens[row] = tokens[row];
+            }
+        }
+        copyProbabilities(network.rnnTimeStep(input), rows, probabilities);
+    }
+
+    @Override
+    public void selectRows(int[] keep) {
+        for(int layer = 0; layer < network.getnLayers(); layer++){
+            if(network.getLayer(layer) instanceof RecurrentLayer){
+                Map<String, INDArray> state = new HashMap<>();
+                for(Map.Entry<String, INDArray> entry : network.rnnGetPreviousState(layer).entrySet()){
+                    state.put(entry.getKey(), entry.getValue().getRows(keep));
+                }
+                network.rnnSetPreviousState(layer, state);
+            }
+        }
+    }
+
+    @Override
+    public float[] getState(int row) {
+        float[] state = new float[stateSize()];
+        int position = 0;
+        for(int layer = 0; layer < network.getnLayers(); layer++){
+            if(network.getLayer(layer) instanceof RecurrentLayer){
+                Map<String, INDArray> layerState = network.rnnGetPreviousState(layer);
+                for(String key : new String[]{LSTM.STATE_KEY_PREV_ACTIVATION, LSTM.STATE_KEY_PREV_MEMCELL}){
+                    float[] values = layerState.get(key).getRow(row).dup().data().asFloat();
+                    System.arraycopy(values, 0, state, position, values.length);
+                    position += values.length;
+                }
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public void setState(float[] state, int rows) {
+        if(state.length != stateSize()){
+            throw new IllegalArgumentException("The state doesn't match the size of the network.");
+        }
+        network.rnnClearPreviousState();
+        input = null;
+
+        int position = 0;
+        for(int layer = 0; layer < network.getnLayers(); layer++){
+            if(network.getLayer(layer) instanceof RecurrentLayer){
+                int size = layerSize(layer);
+                Map<String, INDArray> layerState = new HashMap<>();
+                for(String key : new String[]{LSTM.STATE_KEY_PREV_ACTIVATION, LSTM.STATE_KEY_PREV_MEMCELL}){
+                    INDArray values = Nd4j.create(Arrays.copyOfRange(state, position, position + size),
+                                                  new int[]{1, size});
+                    layerState.put(key, Nd4j.zeros(rows, size).addiRowVector(values));
+                    position += size;
+                }
+                network.rnnSetPreviousState(layer, layerState);
+            }
+        }
+    }
+
+    /**
+     * @return The network, or the model given in its place.
+     */
+    @Override
+    public Object getModel() {
+        return model;
+    }
+
+    /**
+     * @return The number of values in the state of a single row: the output and cell state of every LSTM layer.
+     */
+    private int stateSize() {
+        int size = 0;
+        for(int layer = 0; layer < network.getnLayers(); layer++){
+            if(network.getLayer(layer) instanceof RecurrentLayer){
+                size += 2 * layerSize(layer);
+            }
+        }
+        return size;
+    }
+
+    private int layerSize(int layer) {
+        return (int) ((FeedForwardLayer) network.getLayerWiseConfigurations().getConf(layer).getLayer()).getNOut();
+    }
+
+    /**
+     * Creates the input for a single time step, in 'f' order with shape [rows, inputSize, 1].
+     */
+    private void createInput(int[] tokens, int rows) {
+        input = Nd4j.zeros(new int[]{rows, inputSize, 1}, 'f');
+        inputData = input.data();
+        inputRows = rows;
+        if(inputTokens.length < rows){
+            inputTokens = new int[rows];
+        }
+        for(int row = 0; row < rows; row++){
+            setInput(row, tokens[row], tokens[row]);
+            inputTokens[row] = tokens[row];
+        }
+    }
+
+    /**
+     * Replaces the previous token for a row in the input with a new token.
+     */
+    private void setInput(int row, int previousToken, int token) {
+        if(inputEncoding == InputEncoding.ONE_HOT){
+            inputData.put(row + (long) inputRows * previousToken, 0.0);
+            inputData.put(row + (long) inputRows * token, 1.0);
+        } else {
+            inputData.put(row, (double) token);
+        }
+    }
+
+    /**
+     * Copies the network output for a single time step into a block with one row of probabilities per example. The
+     * whole output buffer is read at once, rather than crossing into native code for every cell.
+     */
+    private void copyProbabilities(INDArray output, int rows, double[] probabilities) {
+        double[] data = output.data().asDouble();
+        long offset = output.offset();
+        long rowStride = output.stride(0);
+        long tokenStride = output.stride(1);
+
+        for(int row = 0; row < rows; row++){
+            for(int token = 0; token < tokenCount; token++){
+                probabilities[row * tokenCount + token] = data[(int) (offset + row * rowStride + token * tokenStride)];
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import com.wabradshaw.ml.wordgenerator.tokenisation.Tokeniser;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ * An endless stream of words which aren't in the corpus, and haven't been produced before. Words are generated in
+ * batches, and any that are empty, repeated, or already in the corpus are thrown away.
+ *
+ * The corpus is checked using a {@link BloomFilter} of the words in the {@link TokenisedCorpus}, rather than a set of
+ * strings, so it only takes a few hundred kilobytes. A false positive means a novel word is occasionally rejected, but
+ * a word from the corpus is never accepted.
+ *
+ * The words already returned are remembered in two more Bloom filters, so memory stays fixed however many words are
+ * taken. Each filter holds a set number of words. Once the newer filter is full, the older one is forgotten and a new
+ * one is started, so a word can only be returned again after at least that many other words have been returned. False
+ * positives occasionally reject a word which hasn't been returned before, and are counted as duplicates.
+ *
+ * This is not thread safe, as it uses the network's stored RNN state.
+ */
+public class NovelWordIterator implements Iterator<String> {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MAX_EMPTY_BATCHES = 100;
+    private static final int DEFAULT_PRODUCED_CAPACITY = 1_000_000;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final WordGenerator wordGenerator;
+    private final MultiLayerNetwork network;
+    private final int batchSize;
+
+    private final BloomFilter dictionary;
+    private final Queue<String> accepted = new ArrayDeque<>();
+
+    // The words returned most recently, and the ones returned before those
+    private final int producedCapacity;
+    private BloomFilter produced;
+    private BloomFilter previouslyProduced;
+    private int producedCount;
+
+    private long generated;
+    private long duplicates;
+    private long known;
+    private long empty;
+
+    /**
+     * @param wordGenerator The generator used to produce each batch of words.
+     * @param network       The trained network.
+     * @param corpus        The words which shouldn't be produced. This should use the same {@link TokenSet} as the
+     *                      generator.
+     * @param batchSize     The number of words generated at once.
+     */
+    public NovelWordIterator(WordGenerator wordGenerator, MultiLayerNetwork network, TokenisedCorpus corpus,
+                             int batchSize) {
+        this(wordGenerator, network, corpus, batchSize, DEFAULT_PRODUCED_CAPACITY);
+    }
+
+    /**
+     * @param wordGenerator    The generator used to produce each batch of words.
+     * @param network          The trained network.
+     * @param corpus           The words which shouldn't be produced. This should use the same {@link TokenSet} as the
+     *                         generator.
+     * @param batchSize        The number of words generated at once.
+     * @param producedCapacity The number of words held by each of the filters of words already returned. Between this
+     *                         and twice this many of the most recent words are never repeated.
+     */
+    public NovelWordIterator(WordGenerator wordGenerator, MultiLayerNetwork network, TokenisedCorpus corpus,
+                             int batchSize, int producedCapacity) {
+        if(producedCapacity < 1){
+            throw new IllegalArgumentException("At least one word must be remembered.");
+        }
+        this.wordGenerator = wordGenerator;
+        this.network = network;
+        this.batchSize = batchSize;
+        this.dictionary = buildDictionary(corpus);
+        this.producedCapacity = producedCapacity;
+        this.produced = new BloomFilter(producedCapacity, FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Adds the hash of every word in the corpus to a {@link BloomFilter}. The hashes are built from the same symbols
+     * the {@link WordGenerator} joins together, so no strings need to be created.
+     */
+    private static BloomFilter buildDictionary(TokenisedCorpus corpus) {
+        Tokeniser tokeniser = corpus.getTokenSet().getTokeniser();
+        String[] symbols = new String[corpus.getTokenSet().getLength()];
+        for(int token = 0; token < symbols.length; token++){
+            symbols[token] = tokeniser.toSymbol(token);
+        }
+
+        BloomFilter filter = new BloomFilter(corpus.size(), FALSE_POSITIVE_RATE);
+        for(int entry = 0; entry < corpus.size(); entry++){
+            long hash = FNV_OFFSET;
+            for(int position = 0; position < corpus.length(entry); position++){
+                hash = hash(hash, symbols[corpus.getToken(entry, position)]);
+            }
+            filter.add(mix(hash));
+        }
+        return filter;
+    }
+
+    /**
+     * Always true, as more words can always be generated.
+     */
+    @Override
+    public boolean hasNext() {
+        return true;
+    }
+
+    @Override
+    public String next() {
+        int emptyBatches = 0;
+        while(accepted.isEmpty()){
+            if(emptyBatches++ == MAX_EMPTY_BATCHES){
+                throw new NoSuchElementException("No novel words were generated in " + MAX_EMPTY_BATCHES + " batches.");
+            }
+            generateBatch();
+        }
+        return accepted.poll();
+    }
+
+    /**
+     * Takes the next novel words.
+     *
+     * @param count The number of words to take.
+     * @return The words.
+     */
+    public List<String> next(int count) {
+        List<String> words = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            words.add(next());
+        }
+        return words;
+    }
+
+    private void generateBatch() {
+        for(String word : wordGenerator.generate(batchSize, network)){
+            generated++;
+            if(word.isEmpty()){
+                empty++;
+                continue;
+            }
+
+            long hash = mix(hash(FNV_OFFSET, word));
+            if(dictionary.mightContain(hash)){
+                known++;
+            } else if(wasProduced(hash)){
+                duplicates++;
+            } else {
+                addProduced(hash);
+                accepted.add(word);
+            }
+        }
+    }
+
+    private boolean wasProduced(long hash) {
+        return produced.mightContain(hash) || (previouslyProduced != null && previouslyProduced.mightContain(hash));
+    }
+
+    /**
+     * Remembers a word which is about to be returned, starting a new filter once the current one is full.
+     */
+    private void addProduced(long hash) {
+        if(producedCount == producedCapacity){
+            previouslyProduced = produced;
+            produced = new BloomFilter(producedCapacity, FALSE_POSITIVE_RATE);
+            producedCount = 0;
+        }
+        produced.add(hash);
+        producedCount++;
+    }
+
+    /**
+     * @return The number of words generated so far, including those which were rejected.
+     */
+    public long getGenerated() {
+        return generated;
+    }
+
+    /**
+     * @return The number of words rejected because they had already been generated.
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return The number of words rejected because they are probably in the corpus.
+     */
+    public long getKnown() {
+        return known;
+    }
+
+    /**
+     * @return The number of words rejected because the network ended them immediately.
+     */
+    public long getEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return The fraction of generated words which were novel.
+     */
+    public double getAcceptanceRate() {
+        return generated == 0 ? 0 : (generated - duplicates - known - empty) / (double) generated;
+    }
+
+    /**
+     * @return The memory used to hold the corpus, in bytes.
+     */
+    public long getDictionarySize() {
+        return dictionary.getSizeInBytes();
+    }
+
+    /**
+     * @return The memory used to remember the words already returned, in bytes. This never grows past two filters.
+     */
+    public long getProducedSize() {
+        return produced.getSizeInBytes() + (previouslyProduced == null ? 0 : previouslyProduced.getSizeInBytes());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d generated, %.1f%% accepted (%d known, %d duplicates, %d empty)",
+                             generated, getAcceptanceRate() * 100, known, duplicates, empty);
+    }
+
+    /**
+     * Continues an FNV-1a hash over the characters of some text.
+     */
+    private static long hash(long hash, CharSequence text) {
+        for(int i = 0; i < text.length(); i++){
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Spreads the bits of a hash, so both halves can be used as separate hashes by the {@link BloomFilter}.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
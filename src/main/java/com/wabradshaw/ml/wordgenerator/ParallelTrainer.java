@@ -0,0 +1,109 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+/**
+ * Trains a network on several cores at once, using data parallelism. Each worker thread owns a replica of the network
+ * and fits its own batches from a single shared iterator. The replicas are kept in step either by averaging their
+ * parameters every few batches, or by sharing their (compressed) gradients after every batch.
+ *
+ * With a single worker the network is fitted directly, so this can be used in place of
+ * {@link MultiLayerNetwork#fit(DataSetIterator)} whatever the number of workers.
+ *
+ * Several workers only help if each one gets a core to itself. ND4J's native backend already uses several threads for
+ * each matrix operation, so the OMP_NUM_THREADS environment variable should be set to roughly the number of cores
+ * divided by the number of workers, or the workers will just fight over the same cores.
+ */
+public class ParallelTrainer implements AutoCloseable {
+
+    private final MultiLayerNetwork network;
+    private final int workers;
+    private final ParallelWrapper wrapper;
+    private boolean listenersForwarded;
+
+    /**
+     * @param network            The network being trained. With more than one worker, this is updated with the
+     *                           averaged parameters at the end of every epoch.
+     * @param workers            The number of replicas trained at once. Usually no more than the number of cores.
+     * @param trainingMode       Either {@link ParallelWrapper.TrainingMode#AVERAGING} or
+     *                           {@link ParallelWrapper.TrainingMode#SHARED_GRADIENTS}. Gradients can only be shared if
+     *                           the network doesn't use truncated backpropagation through time.
+     * @param averagingFrequency How many batches each worker fits between averages. Ignored when sharing gradients.
+     */
+    public ParallelTrainer(MultiLayerNetwork network, int workers, ParallelWrapper.TrainingMode trainingMode,
+                           int averagingFrequency) {
+        if(workers < 1 || averagingFrequency < 1){
+            throw new IllegalArgumentException("At least one worker and an averaging frequency of at least one are " +
+                                               "required.");
+        }
+        // Gradient sharing expects one update per batch from each worker, but truncated backpropagation makes several
+        if(workers > 1 && trainingMode == ParallelWrapper.TrainingMode.SHARED_GRADIENTS
+           && network.getLayerWiseConfigurations().getBackpropType() == BackpropType.TruncatedBPTT){
+            throw new IllegalArgumentException("Gradients can't be shared by networks trained with truncated " +
+                                               "backpropagation through time. Use averaging instead.");
+        }
+        this.network = network;
+        this.workers = workers;
+
+        if(workers == 1){
+            this.wrapper = null;
+        } else {
+            // The WordDataSetIterator prefetches its own batches, so the wrapper doesn't need to
+            this.wrapper = new ParallelWrapper.Builder<>(network)
+                    .workers(workers)
+                    .trainingMode(trainingMode)
+                    .averagingFrequency(averagingFrequency)
+                    .averageUpdaters(true)
+                    .reportScoreAfterAveraging(true)
+                    .prefetchBuffer(0)
+                    .build();
+        }
+    }
+
+    /**
+     * Trains the network for one epoch.
+     *
+     * Batches are handed to the workers while earlier batches are still being fitted, so a
+     * {@link WordDataSetIterator} must have buffer recycling turned off when there is more than one worker. With more
+     * than one worker, the network's listeners are passed on to the replicas the first time this is called, so they
+     * must already have been added. Each replica then reports its own iterations to them, from its own thread, and the
+     * end of each epoch is reported once, for the network itself.
+     *
+     * @param iterator The iterator producing the training batches. This is shared between all of the workers.
+     */
+    public void fit(DataSetIterator iterator) {
+        if(wrapper == null){
+            network.fit(iterator);
+        } else {
+            // The replicas are created by the first fit, and take their listeners from the wrapper
+            if(!listenersForwarded){
+                wrapper.setListeners(network.getListeners());
+                listenersForwarded = true;
+            }
+            wrapper.fit(iterator);
+
+            // The replicas have their own listeners, so the network's are told the epoch is over here instead
+            for(TrainingListener listener : network.getListeners()){
+                listener.onEpochEnd(network);
+            }
+        }
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Stops the worker threads. The trainer can't be used afterwards, although the network can.
+     */
+    @Override
+    public void close() {
+        if(wrapper != null){
+            wrapper.shutdown();
+        }
+    }
+}
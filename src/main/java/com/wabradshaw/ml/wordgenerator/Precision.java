@@ -0,0 +1,25 @@
+package com.wabradshaw.ml.wordgenerator;
+
+/**
+ * How the weight matrices of the LSTM and output layers are stored in a {@link CompactModel}. Biases and embeddings
+ * are small, so are always stored as floats.
+ */
+public enum Precision {
+
+    /**
+     * 32 bit floats, exactly as the network was trained.
+     */
+    FLOAT,
+
+    /**
+     * 16 bit floats. This halves the size of the file, but the weights are expanded back to floats when they're loaded,
+     * as Java has no 16 bit arithmetic.
+     */
+    HALF,
+
+    /**
+     * 8 bit integers, with a float scale for each row of the matrix. The weights stay in this form when loaded by an
+     * {@link LstmEngine}, so they take a quarter of the memory.
+     */
+    INT8
+}
@@ -0,0 +1,181 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the state of a network after it has read a prefix, so words starting with the same prefix can be generated
+ * again without running the prefix through the network. Each entry holds the stored state of every LSTM layer, and the
+ * distribution of the token which follows the prefix.
+ *
+ * Entries are keyed by the model, the {@link TokenSet} and the prefix's tokens. Models are compared by identity, so two
+ * copies of the same network have separate entries. Only the most recently used entries are kept. Models are only
+ * weakly referenced, so the cache doesn't keep them alive, and their entries are dropped once they have been garbage
+ * collected. A model which is trained further gives different states, so {@link #invalidate(Object)} has to be called
+ * before it is used again.
+ *
+ * This is safe to use from multiple threads at once.
+ */
+public class PrefixCache {
+
+    private final Map<Key, Entry> entries;
+    private final ReferenceQueue<Object> collectedModels = new ReferenceQueue<>();
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity The most prefixes to remember.
+     */
+    public PrefixCache(int capacity) {
+        if(capacity < 1){
+            throw new IllegalArgumentException("The cache must be able to hold at least one prefix.");
+        }
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PrefixCache.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return The stored state after the prefix, or null if it isn't in the cache.
+     */
+    synchronized Entry get(Object model, TokenSet tokenSet, int[] prefix) {
+        removeCollected();
+        Entry entry = entries.get(new Key(model, tokenSet, prefix, null));
+        if(entry == null){
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    synchronized void put(Object model, TokenSet tokenSet, int[] prefix, Entry entry) {
+        removeCollected();
+        entries.put(new Key(model, tokenSet, prefix.clone(), collectedModels), entry);
+    }
+
+    /**
+     * Forgets every prefix for a model, e.g. after it has been trained further.
+     *
+     * @param model The model, as returned by {@link TokenPredictor#getModel()}.
+     */
+    public synchronized void invalidate(Object model) {
+        entries.keySet().removeIf(key -> key.model.get() == model);
+    }
+
+    /**
+     * Forgets every prefix, e.g. after the model has been trained further.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        removeCollected();
+        return entries.size();
+    }
+
+    /**
+     * @return The number of times a prefix was found in the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of times a prefix had to be run through the network.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        removeCollected();
+        return String.format("%d prefixes cached, %d hits, %d misses", entries.size(), hits, misses);
+    }
+
+    /**
+     * The state of a model after reading a prefix. Neither array is changed once the entry has been created.
+     */
+    static class Entry {
+        private final float[] state;
+        private final double[] probabilities;
+
+        Entry(float[] state, double[] probabilities) {
+            this.state = state;
+            this.probabilities = probabilities;
+        }
+
+        /**
+         * @return The state of a single row, as returned by {@link TokenPredictor#getState(int)}.
+         */
+        float[] getState() {
+            return state;
+        }
+
+        /**
+         * @return The probability of each token following the prefix.
+         */
+        double[] getProbabilities() {
+            return probabilities;
+        }
+    }
+
+    /**
+     * Drops the entries for every model which has been garbage collected since the last check.
+     */
+    private void removeCollected() {
+        Reference<?> collected;
+        while((collected = collectedModels.poll()) != null){
+            Reference<?> model = collected;
+            entries.keySet().removeIf(key -> key.model == model);
+        }
+    }
+
+    private static class Key {
+        private final WeakReference<Object> model;
+        private final int modelHash;
+        private final TokenSet tokenSet;
+        private final int[] prefix;
+
+        /**
+         * @param collectedModels Where the model's reference is put once it has been collected, or null for keys which
+         *                        are only used to look entries up.
+         */
+        private Key(Object model, TokenSet tokenSet, int[] prefix, ReferenceQueue<Object> collectedModels) {
+            this.model = new WeakReference<>(model, collectedModels);
+            this.modelHash = System.identityHashCode(model);
+            this.tokenSet = tokenSet;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o){
+                return true;
+            }
+            if(!(o instanceof Key)){
+                return false;
+            }
+            // Once a model has been collected, its keys only equal themselves
+            Key other = (Key) o;
+            Object model = this.model.get();
+            return model != null && model == other.model.get() && tokenSet == other.tokenSet &&
+                   Arrays.equals(prefix, other.prefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return (modelHash * 31 + tokenSet.hashCode()) * 31 + Arrays.hashCode(prefix);
+        }
+    }
+}
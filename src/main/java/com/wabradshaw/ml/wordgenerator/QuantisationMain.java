@@ -0,0 +1,253 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import com.wabradshaw.ml.wordgenerator.tokenisation.Tokeniser;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Main which measures what is lost by storing a trained network's weights at each {@link Precision}. The network is
+ * exported at each precision and run with an {@link LstmEngine}, and compared against the full precision model:
+ *
+ * - The size of the file, and of the weights once loaded.
+ * - The time taken by a time step, for a single word and for a batch of words.
+ * - The token distributions for words from the corpus, fed in one token at a time: the mean KL divergence from the full
+ *   precision distribution, the largest difference in any probability, how often the most likely token is the same,
+ *   and the cross entropy of the real next token.
+ * - The fraction of generated words which are valid, meaning they are not empty, finished before the length limit, and
+ *   have a stress marker straight after every vowel and nowhere else.
+ *
+ * Results are printed as a table and written to a CSV file.
+ */
+public class QuantisationMain {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+    private static final int START_TOKEN_ID = 0;
+    private static final int EOF_TOKEN_ID = 1;
+
+    private static final String FILENAME = "src/main/resources/generatedModelPhonemes";
+    private static final String OUTPUT_DIRECTORY = "target/quantisation";
+    private static final String REPORT_FILENAME = "target/quantisation-report.csv";
+
+    private static final int WORDS_CHECKED = 2000;
+    private static final int WORDS_GENERATED = 2000;
+    private static final int BATCH_SIZE = 100;
+    private static final int[] LATENCY_ROWS = {1, 16};
+    private static final int LATENCY_STEPS = 1000;
+
+    private static final int SEED = 1234;
+
+    public static void main(String[] args) throws Exception {
+
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(FILENAME + ".zip", false);
+        TokenisedCorpus corpus = TokenisedCorpus.load(TOKEN_SET);
+        int[] checkedWords = sampleWords(corpus, new Random(SEED));
+
+        File directory = new File(OUTPUT_DIRECTORY);
+        directory.mkdirs();
+        LstmEngine reference = null;
+
+        System.out.println(String.format("%-6s %8s %9s %9s %9s %9s %9s %7s %8s %7s",
+                                         "", "file KB", "weight KB", "us/step", "us/step", "mean KL", "max diff",
+                                         "top 1", "entropy", "valid"));
+        System.out.println(String.format("%-6s %8s %9s %9s %9s", "", "", "", "1 word", LATENCY_ROWS[1] + " words"));
+
+        File reportFile = new File(REPORT_FILENAME);
+        try(PrintWriter report = new PrintWriter(reportFile, StandardCharsets.UTF_8.name())){
+            report.println("precision,fileKB,weightKB,microsPerStep1,microsPerStep" + LATENCY_ROWS[1] +
+                           ",meanKL,maxDifference,top1Agreement,crossEntropy,validFraction");
+
+            for(Precision precision : Precision.values()){
+                File file = new File(directory, "model-" + precision.name().toLowerCase() + CompactModel.EXTENSION);
+                CompactModel.export(network, TOKEN_SET, file, precision);
+                LstmEngine candidate = new LstmEngine(CompactModel.load(file));
+                // The full precision model comes first, and is compared against a copy of itself as a sanity check
+                if(reference == null){
+                    reference = new LstmEngine(CompactModel.load(file));
+                }
+
+                double[] latencies = new double[LATENCY_ROWS.length];
+                for(int i = 0; i < LATENCY_ROWS.length; i++){
+                    latencies[i] = timeStep(candidate, LATENCY_ROWS[i]);
+                }
+                Comparison comparison = compare(reference, candidate, corpus, checkedWords);
+                double valid = validFraction(new WordGenerator(TOKEN_SET).generateTokens(WORDS_GENERATED, candidate));
+
+                double fileKb = file.length() / 1024.0;
+                double weightKb = candidate.getWeightSize() / 1024.0;
+                System.out.println(String.format("%-6s %8.0f %9.0f %9.1f %9.1f %9.2e %9.2e %6.2f%% %8.4f %6.2f%%",
+                                                 precision, fileKb, weightKb, latencies[0], latencies[1],
+                                                 comparison.getMeanKl(), comparison.maxDifference,
+                                                 comparison.getTopOneAgreement() * 100,
+                                                 comparison.getCrossEntropy(), valid * 100));
+                report.println(String.format("%s,%.1f,%.1f,%.3f,%.3f,%.6e,%.6e,%.6f,%.6f,%.6f",
+                                             precision, fileKb, weightKb, latencies[0], latencies[1],
+                                             comparison.getMeanKl(), comparison.maxDifference,
+                                             comparison.getTopOneAgreement(), comparison.getCrossEntropy(), valid));
+            }
+        }
+
+        System.out.println("Report written to " + reportFile.getPath());
+    }
+
+    /**
+     * Picks words from the corpus to check the token distributions on.
+     */
+    private static int[] sampleWords(TokenisedCorpus corpus, Random random) {
+        int[] words = new int[WORDS_CHECKED];
+        for(int i = 0; i < words.length; i++){
+            words[i] = random.nextInt(corpus.size());
+        }
+        return words;
+    }
+
+    /**
+     * Times a single time step, once the engine has warmed up.
+     *
+     * @return The mean time per step, in microseconds.
+     */
+    private static double timeStep(LstmEngine engine, int rows) {
+        int[] tokens = new int[rows];
+        double[] probabilities = new double[rows * TOKEN_SET.getLength()];
+        for(int row = 0; row < rows; row++){
+            tokens[row] = 2 + row % (TOKEN_SET.getLength() - 2);
+        }
+
+        long start = 0;
+        for(int step = -LATENCY_STEPS; step < LATENCY_STEPS; step++){
+            if(step == 0){
+                start = System.nanoTime();
+            }
+            if(step % TOKEN_SET.getLength() == 0){
+                engine.reset(rows);
+            }
+            engine.step(tokens, rows, probabilities);
+        }
+        return (System.nanoTime() - start) / 1000.0 / LATENCY_STEPS;
+    }
+
+    /**
+     * Feeds words from the corpus through both engines a token at a time, and compares the distributions they
+     * predict for the next token, up to and including the end of file token.
+     */
+    private static Comparison compare(LstmEngine reference, LstmEngine candidate, TokenisedCorpus corpus,
+                                      int[] checkedWords) {
+        int tokenCount = TOKEN_SET.getLength();
+        int maxLength = 0;
+        for(int word : checkedWords){
+            maxLength = Math.max(maxLength, corpus.length(word));
+        }
+
+        int[][] words = new int[BATCH_SIZE][maxLength];
+        int[] lengths = new int[BATCH_SIZE];
+        int[] inputs = new int[BATCH_SIZE];
+        double[] expected = new double[BATCH_SIZE * tokenCount];
+        double[] actual = new double[BATCH_SIZE * tokenCount];
+        Comparison comparison = new Comparison();
+
+        for(int start = 0; start < checkedWords.length; start += BATCH_SIZE){
+            int rows = Math.min(BATCH_SIZE, checkedWords.length - start);
+            int longest = 0;
+            for(int row = 0; row < rows; row++){
+                lengths[row] = corpus.getTokens(checkedWords[start + row], words[row]);
+                longest = Math.max(longest, lengths[row]);
+                inputs[row] = START_TOKEN_ID;
+            }
+
+            reference.reset(rows);
+            candidate.reset(rows);
+            for(int position = 0; position <= longest; position++){
+                reference.step(inputs, rows, expected);
+                candidate.step(inputs, rows, actual);
+
+                for(int row = 0; row < rows; row++){
+                    // Rows whose word has already ended are still run, but not counted
+                    if(position <= lengths[row]){
+                        int target = position < lengths[row] ? words[row][position] : EOF_TOKEN_ID;
+                        comparison.add(expected, actual, row * tokenCount, tokenCount, target);
+                    }
+                    inputs[row] = position < lengths[row] ? words[row][position] : EOF_TOKEN_ID;
+                }
+            }
+        }
+        return comparison;
+    }
+
+    /**
+     * @return The fraction of the words which are valid sequences of phonemes.
+     */
+    private static double validFraction(List<int[]> words) {
+        Tokeniser tokeniser = TOKEN_SET.getTokeniser();
+        int valid = 0;
+        for(int[] word : words){
+            if(isValid(word, tokeniser)){
+                valid++;
+            }
+        }
+        return valid / (double) words.size();
+    }
+
+    private static boolean isValid(int[] word, Tokeniser tokeniser) {
+        // A word which reached the length limit never produced an end of file token
+        if(word.length == 0 || word.length >= TOKEN_SET.getLength()){
+            return false;
+        }
+        boolean afterVowel = false;
+        for(int token : word){
+            // Phoneme symbols come with a leading space to separate them when joined
+            String symbol = tokeniser.toSymbol(token).trim();
+            boolean stress = Character.isDigit(symbol.charAt(0));
+            if(stress != afterVowel){
+                return false;
+            }
+            afterVowel = !stress && "AEIOU".indexOf(symbol.charAt(0)) >= 0;
+        }
+        return !afterVowel;
+    }
+
+    /**
+     * The differences between the distributions predicted at full and reduced precision.
+     */
+    private static class Comparison {
+        private long predictions;
+        private long topOneMatches;
+        private double totalKl;
+        private double totalCrossEntropy;
+        private double maxDifference;
+
+        private void add(double[] expected, double[] actual, int offset, int length, int target) {
+            int expectedBest = offset;
+            int actualBest = offset;
+            for(int i = offset; i < offset + length; i++){
+                if(expected[i] > 0){
+                    totalKl += expected[i] * Math.log(expected[i] / actual[i]);
+                }
+                maxDifference = Math.max(maxDifference, Math.abs(expected[i] - actual[i]));
+                expectedBest = expected[i] > expected[expectedBest] ? i : expectedBest;
+                actualBest = actual[i] > actual[actualBest] ? i : actualBest;
+            }
+            if(expectedBest == actualBest){
+                topOneMatches++;
+            }
+            totalCrossEntropy -= Math.log(actual[offset + target]);
+            predictions++;
+        }
+
+        private double getMeanKl() {
+            return totalKl / predictions;
+        }
+
+        private double getTopOneAgreement() {
+            return topOneMatches / (double) predictions;
+        }
+
+        private double getCrossEntropy() {
+            return totalCrossEntropy / predictions;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Main which measures how well data-parallel training scales with the number of workers. The same network, starting
+ * from the same parameters, is trained on the same batches with each number of workers in turn. For each one it
+ * reports the number of examples trained per second, the speedup and efficiency compared to a single worker, and the
+ * score on a fixed batch afterwards, as averaging the replicas can slow down how quickly the network learns.
+ *
+ * Results are printed as a table and written to a CSV file. Run it with the cpu profile, and with OMP_NUM_THREADS set
+ * to 1 so each worker is limited to its own core.
+ */
+public class ScalingMain {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+    private static final int MAX_WORD_LENGTH = 19;
+
+    private static final int LAYER_SIZE = 400;
+    private static final double LEARNING_RATE = 0.2;
+    private static final InputEncoding INPUT_ENCODING = InputEncoding.ONE_HOT;
+    private static final int EMBEDDING_SIZE = 32;
+
+    private static final int[] WORKER_COUNTS = {1, 2, 4, 8};
+    private static final ParallelWrapper.TrainingMode TRAINING_MODE = ParallelWrapper.TrainingMode.AVERAGING;
+    private static final int AVERAGING_FREQUENCY = 5;
+
+    private static final int EPOCHS = 2;
+    private static final int BATCHES = 64;
+    private static final int BATCH_SIZE = 256;
+    private static final int DATA_THREADS = 2;
+
+    private static final int SEED = 1234;
+
+    private static final String REPORT_FILENAME = "target/scaling-report.csv";
+
+    public static void main(String[] args) throws Exception {
+
+        DataSetGenerator dataSetGenerator = new DataSetGenerator(TOKEN_SET, INPUT_ENCODING);
+        DataSet scoringBatch = dataSetGenerator.getDataSet(0, BATCH_SIZE, MAX_WORD_LENGTH, SEED);
+
+        System.out.println(String.format("%d epochs of %d batches of %d words, %d cores available",
+                                         EPOCHS, BATCHES, BATCH_SIZE, Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("%8s %12s %12s %8s %11s %8s",
+                                         "workers", "seconds", "examples/s", "speedup", "efficiency", "score"));
+
+        File reportFile = new File(REPORT_FILENAME);
+        reportFile.getAbsoluteFile().getParentFile().mkdirs();
+
+        try(PrintWriter report = new PrintWriter(reportFile, StandardCharsets.UTF_8.name())){
+            report.println("workers,seconds,examplesPerSecond,speedup,efficiency,score");
+
+            double baseline = 0;
+            for(int workers : WORKER_COUNTS){
+                MultiLayerNetwork network = createNetwork();
+                long elapsed = train(network, dataSetGenerator, workers);
+
+                double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+                double examplesPerSecond = (long) EPOCHS * BATCHES * BATCH_SIZE / seconds;
+                if(baseline == 0){
+                    baseline = examplesPerSecond;
+                }
+                double speedup = examplesPerSecond / baseline;
+                double efficiency = speedup / workers;
+                double score = network.score(scoringBatch);
+
+                System.out.println(String.format("%8d %12.1f %12.1f %7.2fx %10.0f%% %8.4f",
+                                                 workers, seconds, examplesPerSecond, speedup, efficiency * 100,
+                                                 score));
+                report.println(String.format("%d,%.3f,%.1f,%.3f,%.3f,%.6f",
+                                             workers, seconds, examplesPerSecond, speedup, efficiency, score));
+            }
+        }
+
+        System.out.println("Report written to " + reportFile.getPath());
+    }
+
+    /**
+     * Creates a new network. The seed is fixed, so every network starts with the same parameters.
+     */
+    private static MultiLayerNetwork createNetwork() {
+        return new NetworkConfiguration(TOKEN_SET, LAYER_SIZE, LEARNING_RATE, SEED, INPUT_ENCODING, EMBEDDING_SIZE)
+                .createNetwork();
+    }
+
+    /**
+     * Trains a network for every epoch using a number of workers, and times it.
+     *
+     * @param network          The network to train.
+     * @param dataSetGenerator The generator for the training batches.
+     * @param workers          The number of workers.
+     * @return The time taken in nanoseconds.
+     */
+    private static long train(MultiLayerNetwork network, DataSetGenerator dataSetGenerator, int workers) {
+        WordDataSetIterator iterator = new WordDataSetIterator(dataSetGenerator, Batching.SEQUENTIAL, BATCHES,
+                                                               BATCH_SIZE, MAX_WORD_LENGTH, new Random(SEED),
+                                                               DATA_THREADS, workers * 2);
+        iterator.setRecycleBuffers(workers == 1);
+
+        try(ParallelTrainer trainer = new ParallelTrainer(network, workers, TRAINING_MODE, AVERAGING_FREQUENCY)){
+            long start = System.nanoTime();
+            for(int epoch = 0; epoch < EPOCHS; epoch++){
+                trainer.fit(iterator);
+            }
+            return System.nanoTime() - start;
+        } finally {
+            iterator.shutdown();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Main which measures how the order of the training words affects how quickly the network learns. The corpus is in
+ * alphabetical order, so with {@link Batching#SEQUENTIAL} every batch is a narrow slice of the alphabet, and unless the
+ * batches cover the whole corpus the same slices are used every epoch. {@link Batching#SHUFFLED} draws every batch from
+ * a new permutation of the whole corpus each epoch instead.
+ *
+ * The same network, starting from the same parameters, is trained with each kind of batching in turn. After every epoch
+ * it is scored on a fixed batch drawn from across the whole corpus. The report shows the first epoch at which the score
+ * reached the target, along with the score after every epoch. Results are printed as a table and written to a CSV file.
+ */
+public class ShufflingMain {
+
+    private static final TokenSet TOKEN_SET = TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES;
+    private static final int MAX_WORD_LENGTH = 19;
+
+    private static final int LAYER_SIZE = 200;
+    private static final double LEARNING_RATE = 0.2;
+    private static final InputEncoding INPUT_ENCODING = InputEncoding.ONE_HOT;
+    private static final int EMBEDDING_SIZE = 32;
+
+    private static final Batching[] BATCHINGS = {Batching.SEQUENTIAL, Batching.BUCKETED, Batching.SHUFFLED};
+    private static final int EPOCHS = 8;
+    private static final int BATCHES = 16;
+    private static final int BATCH_SIZE = 256;
+    private static final int SCORING_BATCH_SIZE = 1024;
+    private static final double TARGET_SCORE = 28;
+    private static final int DATA_THREADS = 2;
+
+    private static final int SEED = 1234;
+
+    private static final String REPORT_FILENAME = "target/shuffling-report.csv";
+
+    public static void main(String[] args) throws Exception {
+
+        DataSetGenerator dataSetGenerator = new DataSetGenerator(TOKEN_SET, INPUT_ENCODING);
+        TokenisedCorpus corpus = dataSetGenerator.getCorpus();
+
+        // A different seed to training, so the scoring batch isn't simply the first shuffled batch
+        BatchPlan scoringPlan = BatchPlan.shuffled(corpus, 1, SCORING_BATCH_SIZE, MAX_WORD_LENGTH,
+                                                   new Random(SEED + 1));
+        DataSet scoringBatch = dataSetGenerator.getDataSet(scoringPlan, 0, SEED);
+
+        System.out.println(String.format("%d epochs of %d batches of %d words, out of %d words in the corpus",
+                                         EPOCHS, BATCHES, BATCH_SIZE, corpus.size()));
+        StringBuilder header = new StringBuilder(String.format("%-12s %8s", "batching", "target"));
+        for(int epoch = 0; epoch < EPOCHS; epoch++){
+            header.append(String.format(" %8s", "epoch " + epoch));
+        }
+        System.out.println(header);
+
+        File reportFile = new File(REPORT_FILENAME);
+        reportFile.getAbsoluteFile().getParentFile().mkdirs();
+
+        try(PrintWriter report = new PrintWriter(reportFile, StandardCharsets.UTF_8.name())){
+            report.println("batching,epoch,seconds,score,targetReached");
+
+            for(Batching batching : BATCHINGS){
+                double[] scores = new double[EPOCHS];
+                int epochsToTarget = -1;
+
+                MultiLayerNetwork network = createNetwork();
+                WordDataSetIterator iterator = new WordDataSetIterator(dataSetGenerator, batching, BATCHES,
+                                                                       BATCH_SIZE, MAX_WORD_LENGTH, new Random(SEED),
+                                                                       DATA_THREADS, 2);
+                iterator.setRecycleBuffers(true);
+
+                try(ParallelTrainer trainer = new ParallelTrainer(network, 1, ParallelWrapper.TrainingMode.AVERAGING,
+                                                                  1)){
+                    long start = System.nanoTime();
+                    for(int epoch = 0; epoch < EPOCHS; epoch++){
+                        trainer.fit(iterator);
+                        scores[epoch] = network.score(scoringBatch);
+                        if(epochsToTarget < 0 && scores[epoch] <= TARGET_SCORE){
+                            epochsToTarget = epoch + 1;
+                        }
+
+                        double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+                        report.println(String.format("%s,%d,%.3f,%.6f,%b", batching, epoch, seconds, scores[epoch],
+                                                     epochsToTarget > 0));
+                    }
+                } finally {
+                    iterator.shutdown();
+                }
+
+                StringBuilder row = new StringBuilder(String.format("%-12s %8s", batching,
+                                                                    epochsToTarget > 0 ? epochsToTarget : "-"));
+                for(double score : scores){
+                    row.append(String.format(" %8.4f", score));
+                }
+                System.out.println(row);
+            }
+        }
+
+        System.out.println("Target is a score of " + TARGET_SCORE + " on " + SCORING_BATCH_SIZE + " words from " +
+                           "across the corpus. Report written to " + REPORT_FILENAME);
+    }
+
+    /**
+     * Creates a new network. The seed is fixed, so every network starts with the same parameters.
+     */
+    private static MultiLayerNetwork createNetwork() {
+        return new NetworkConfiguration(TOKEN_SET, LAYER_SIZE, LEARNING_RATE, SEED, INPUT_ENCODING, EMBEDDING_SIZE)
+                .createNetwork();
+    }
+}
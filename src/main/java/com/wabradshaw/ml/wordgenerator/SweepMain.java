@@ -0,0 +1,80 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.util.ModelSerializer;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Main which searches for the best network settings, using a {@link HyperparameterSweep}. Either every combination of
+ * the settings below is tried, or a random selection of them. Trials are trained at the same time on separate threads,
+ * and the worst are dropped after each round.
+ *
+ * The ranked trials are printed as a table, every trial's results are written to a CSV file, and the best network is
+ * saved. Run it with the cpu profile, and with OMP_NUM_THREADS set to the number of cores divided by the number of
+ * trials trained at once.
+ */
+public class SweepMain {
+
+    private static final TokenSet[] TOKEN_SETS = {TokenSet.PHONEMES_ARPABET_SEPARATE_STRESSES};
+    private static final int[] LAYER_SIZES = {100, 200, 400};
+    private static final double[] LEARNING_RATES = {0.05, 0.2, 0.5};
+    private static final int[] BATCH_SIZES = {128, 512};
+    private static final int[] MAX_WORD_LENGTHS = {15, 19};
+
+    // 0 tries every combination, otherwise this many combinations are chosen at random
+    private static final int RANDOM_TRIALS = 0;
+
+    private static final int CONCURRENT_TRIALS = Runtime.getRuntime().availableProcessors();
+    private static final int MEMORY_BUDGET_MB = 4096;
+
+    private static final int MIN_EPOCHS = 1;
+    private static final int MAX_EPOCHS = 27;
+    private static final int REDUCTION = 3;
+    private static final int BATCHES_PER_EPOCH = 20;
+    private static final double HELD_OUT_FRACTION = 0.05;
+
+    private static final int SEED = 1234;
+
+    private static final String RESULTS_FILENAME = "target/sweep-results.csv";
+    private static final String BEST_MODEL_FILENAME = "target/sweep-best.zip";
+
+    public static void main(String[] args) throws Exception {
+
+        List<HyperparameterSweep.Configuration> configurations =
+                HyperparameterSweep.grid(TOKEN_SETS, LAYER_SIZES, LEARNING_RATES, BATCH_SIZES, MAX_WORD_LENGTHS);
+        if(RANDOM_TRIALS > 0){
+            configurations = HyperparameterSweep.random(configurations, RANDOM_TRIALS, new Random(SEED));
+        }
+
+        System.out.println(String.format("%d trials, %d at a time within %d MB, %d to %d epochs of %d batches",
+                                         configurations.size(), CONCURRENT_TRIALS, MEMORY_BUDGET_MB, MIN_EPOCHS,
+                                         MAX_EPOCHS, BATCHES_PER_EPOCH));
+
+        HyperparameterSweep sweep = new HyperparameterSweep(CONCURRENT_TRIALS, MEMORY_BUDGET_MB, MIN_EPOCHS,
+                                                            MAX_EPOCHS, REDUCTION, BATCHES_PER_EPOCH,
+                                                            HELD_OUT_FRACTION, SEED);
+        File resultsFile = new File(RESULTS_FILENAME);
+        List<HyperparameterSweep.Trial> trials = sweep.run(configurations, resultsFile);
+
+        System.out.println(String.format("%5s %-38s %6s %5s %5s %7s %7s %10s %9s",
+                                         "trial", "tokens", "units", "rate", "batch", "length", "epochs", "loss/word",
+                                         "accuracy"));
+        for(HyperparameterSweep.Trial trial : trials){
+            HyperparameterSweep.Configuration configuration = trial.getConfiguration();
+            System.out.println(String.format("%5d %-38s %6d %5s %5d %7d %7d %10.4f %8.2f%%",
+                                             trial.getId(), configuration.getTokenSet(), configuration.getLayerSize(),
+                                             configuration.getLearningRate(), configuration.getBatchSize(),
+                                             configuration.getMaxWordLength(), trial.getEpochs(),
+                                             trial.getResult().getLossPerWord(),
+                                             trial.getResult().getAccuracy() * 100));
+        }
+
+        HyperparameterSweep.Trial best = trials.get(0);
+        ModelSerializer.writeModel(best.getNetwork(), new File(BEST_MODEL_FILENAME), true);
+        System.out.println("Best: " + best);
+        System.out.println("Results written to " + resultsFile.getPath() + ", best network to " +
+                           BEST_MODEL_FILENAME);
+    }
+}
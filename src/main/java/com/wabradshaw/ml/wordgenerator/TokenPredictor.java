@@ -0,0 +1,60 @@
+package com.wabradshaw.ml.wordgenerator;
+
+/**
+ * Predicts the next token for a batch of words, one time step at a time. Each row of the batch is a separate word,
+ * with its own stored state. This is what {@link WordGenerator} needs from a trained network, so generation can use
+ * either DL4J or the {@link LstmEngine}.
+ *
+ * Implementations store state between calls, so can't be used by more than one thread at once.
+ */
+public interface TokenPredictor {
+
+    /**
+     * Clears the stored state, ready to start a new batch of words.
+     *
+     * @param rows The number of rows in the new batch.
+     */
+    void reset(int rows);
+
+    /**
+     * Feeds the latest token of each word in, and predicts the token which follows it.
+     *
+     * @param tokens        The latest token of each row. The first step of a word uses the start token.
+     * @param rows          The number of rows in the batch.
+     * @param probabilities Where to write the probability of each token following each row. Row r's distribution is
+     *                      written from index (r * tokenCount).
+     */
+    void step(int[] tokens, int rows, double[] probabilities);
+
+    /**
+     * Rearranges the stored state, so each row continues from the state of a chosen row. Rows can be dropped, or
+     * chosen more than once.
+     *
+     * @param keep The indexes of the rows to keep, in the order they should appear. Its length is the new number of
+     *             rows.
+     */
+    void selectRows(int[] keep);
+
+    /**
+     * Copies the stored state of one row, so it can be restored later with {@link #setState(float[], int)}. The state
+     * is the output and then the cell state of each LSTM layer in turn.
+     *
+     * @param row The row to copy.
+     * @return The state.
+     */
+    float[] getState(int row);
+
+    /**
+     * Starts a new batch in which every row continues from the same stored state.
+     *
+     * @param state The state, from {@link #getState(int)} on a predictor for the same model.
+     * @param rows  The number of rows in the new batch.
+     */
+    void setState(float[] state, int rows);
+
+    /**
+     * @return The trained model this predictor runs. Predictors which return the same model give the same predictions
+     *         for the same tokens.
+     */
+    Object getModel();
+}
@@ -0,0 +1,331 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import com.wabradshaw.ml.wordgenerator.tokenisation.Tokeniser;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * The words from the phonemes file, already converted into tokens for a particular {@link TokenSet}.
+ *
+ * Tokenising the source file is slow, so the first time a corpus is needed it is compiled into a compact binary cache
+ * file. Later loads memory-map that file instead of parsing any text. The cache is keyed by the name of the
+ * {@link TokenSet} and a checksum of the source file, so it is rebuilt automatically if the source changes.
+ *
+ * The cache file contains a header, then an offsets array of (size + 1) ints, followed by one byte per token. The
+ * tokens for entry i are the bytes between offsets[i] and offsets[i+1].
+ */
+public class TokenisedCorpus {
+
+    private static final String SOURCE_FILENAME = "/phonemes.txt";
+    private static final int IGNORED_LINES = 126;
+
+    private static final String CACHE_DIRECTORY = "target/corpus";
+    private static final String CACHE_EXTENSION = ".corpus";
+    private static final int MAGIC = 0x57475443;
+    private static final int VERSION = 1;
+
+    private final TokenSet tokenSet;
+    private final int size;
+    private final IntBuffer offsets;
+    private final ByteBuffer tokens;
+
+    private TokenisedCorpus(TokenSet tokenSet, int size, IntBuffer offsets, ByteBuffer tokens) {
+        this.tokenSet = tokenSet;
+        this.size = size;
+        this.offsets = offsets;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Loads the corpus for a {@link TokenSet}, using the default cache directory.
+     *
+     * @param tokenSet The {@link TokenSet} the words should be split into.
+     * @return The tokenised corpus.
+     */
+    public static TokenisedCorpus load(TokenSet tokenSet) {
+        return load(tokenSet, new File(CACHE_DIRECTORY));
+    }
+
+    /**
+     * Loads the corpus for a {@link TokenSet}. If there isn't an up to date cache file in the cache directory, the
+     * source file is tokenised and the cache is written first.
+     *
+     * @param tokenSet       The {@link TokenSet} the words should be split into.
+     * @param cacheDirectory The directory containing the cache files.
+     * @return The tokenised corpus.
+     */
+    public static TokenisedCorpus load(TokenSet tokenSet, File cacheDirectory) {
+        try {
+            URL source = getSource();
+            long checksum = checksum(source);
+            File cacheFile = new File(cacheDirectory, tokenSet.name() + CACHE_EXTENSION);
+
+            TokenisedCorpus corpus = cacheFile.exists() ? map(tokenSet, checksum, cacheFile) : null;
+            if(corpus == null){
+                compile(tokenSet, source, checksum, cacheFile);
+                corpus = map(tokenSet, checksum, cacheFile);
+            }
+            return corpus;
+
+        } catch(IOException e){
+            throw new RuntimeException("Could not load the tokenised corpus for " + tokenSet, e);
+        }
+    }
+
+    /**
+     * Tokenises every usable line of the source file, and writes the result to the cache file. Lines which the
+     * {@link Tokeniser} can't use are left out. The file is written to a temporary location first, so a partially
+     * written cache is never picked up by another process.
+     *
+     * @param tokenSet  The {@link TokenSet} the words should be split into.
+     * @param source    The location of the source phonemes file. This can be inside a jar.
+     * @param checksum  The checksum of the source file.
+     * @param cacheFile Where the cache should be written.
+     * @throws IOException If either file can't be accessed.
+     */
+    public static void compile(TokenSet tokenSet, URL source, long checksum, File cacheFile) throws IOException {
+        if(tokenSet.getLength() > Byte.MAX_VALUE){
+            throw new IllegalArgumentException(tokenSet + " has too many tokens to store one per byte.");
+        }
+        Tokeniser tokeniser = tokenSet.getTokeniser();
+
+        ByteArrayOutputStream tokenBytes = new ByteArrayOutputStream();
+        int[] offsets = new int[1024];
+        int[] wordTokens = new int[64];
+        int size = 0;
+
+        try(InputStream in = source.openStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))){
+            int lineNumber = 0;
+            String line;
+            while((line = reader.readLine()) != null){
+                if(lineNumber++ < IGNORED_LINES){
+                    continue;
+                }
+
+                String word = tokeniser.getRelevantWord(line);
+                if(word == null){
+                    continue;
+                }
+
+                // A word never has more tokens than characters
+                if(word.length() > wordTokens.length){
+                    wordTokens = new int[word.length()];
+                }
+                int length = tokeniser.tokenise(word, wordTokens);
+                if(length < 0){
+                    continue;
+                }
+                for(int i = 0; i < length; i++){
+                    tokenBytes.write(wordTokens[i]);
+                }
+
+                if(size + 2 > offsets.length){
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                size++;
+                offsets[size] = tokenBytes.size();
+            }
+        }
+
+        File directory = cacheFile.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        File temp = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(tokenSet.name());
+            out.writeLong(checksum);
+            out.writeInt(size);
+            out.writeInt(tokenBytes.size());
+            for(int i = 0; i <= size; i++){
+                out.writeInt(offsets[i]);
+            }
+            tokenBytes.writeTo(out);
+        }
+
+        Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Memory-maps an existing cache file.
+     *
+     * @return The corpus, or null if the cache file is for a different version, token set or source file.
+     */
+    private static TokenisedCorpus map(TokenSet tokenSet, long checksum, File cacheFile) throws IOException {
+        try(FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)){
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION){
+                return null;
+            }
+
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            if(!tokenSet.name().equals(new String(name, StandardCharsets.UTF_8)) || buffer.getLong() != checksum){
+                return null;
+            }
+
+            int size = buffer.getInt();
+            int tokenCount = buffer.getInt();
+
+            buffer.limit(buffer.position() + (size + 1) * Integer.BYTES);
+            IntBuffer offsets = buffer.slice().asIntBuffer();
+
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.position() + tokenCount);
+            ByteBuffer tokens = buffer.slice();
+
+            return new TokenisedCorpus(tokenSet, size, offsets, tokens);
+        }
+    }
+
+    private static URL getSource() {
+        URL resource = TokenisedCorpus.class.getResource(SOURCE_FILENAME);
+        if(resource == null){
+            throw new RuntimeException("Phonemes file could not be found.");
+        }
+        return resource;
+    }
+
+    private static long checksum(URL source) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try(InputStream in = source.openStream()){
+            int read;
+            while((read = in.read(buffer)) > 0){
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Splits the corpus in two, so some words can be held out of training to measure how well the network generalises.
+     * Each word is held out with the given probability, so the held out words are spread across the whole alphabet.
+     * The split only depends on the seed, so the same words are held out every time, including when training resumes.
+     *
+     * @param heldOutFraction The fraction of words to hold out, between 0 and 1.
+     * @param seed            The seed used to choose the held out words.
+     * @return The two corpora. Both are kept in memory, rather than mapped from the cache file.
+     */
+    public Split split(double heldOutFraction, long seed) {
+        if(heldOutFraction < 0 || heldOutFraction > 1){
+            throw new IllegalArgumentException("The held out fraction must be between 0 and 1.");
+        }
+
+        int[] training = new int[size];
+        int[] heldOut = new int[size];
+        int trainingCount = 0;
+        int heldOutCount = 0;
+
+        Random random = new Random(seed);
+        for(int entry = 0; entry < size; entry++){
+            if(random.nextDouble() < heldOutFraction){
+                heldOut[heldOutCount++] = entry;
+            } else {
+                training[trainingCount++] = entry;
+            }
+        }
+
+        return new Split(subset(training, trainingCount), subset(heldOut, heldOutCount));
+    }
+
+    /**
+     * Copies some of the words into a new corpus, in the same order.
+     */
+    private TokenisedCorpus subset(int[] entries, int count) {
+        int[] subsetOffsets = new int[count + 1];
+        for(int i = 0; i < count; i++){
+            subsetOffsets[i + 1] = subsetOffsets[i] + length(entries[i]);
+        }
+
+        byte[] subsetTokens = new byte[subsetOffsets[count]];
+        for(int i = 0; i < count; i++){
+            int start = offsets.get(entries[i]);
+            for(int position = subsetOffsets[i]; position < subsetOffsets[i + 1]; position++){
+                subsetTokens[position] = tokens.get(start++);
+            }
+        }
+
+        return new TokenisedCorpus(tokenSet, count, IntBuffer.wrap(subsetOffsets), ByteBuffer.wrap(subsetTokens));
+    }
+
+    public TokenSet getTokenSet() {
+        return tokenSet;
+    }
+
+    /**
+     * @return The number of words in the corpus.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param entry The index of the word in the corpus.
+     * @return The number of tokens in that word.
+     */
+    public int length(int entry) {
+        return offsets.get(entry + 1) - offsets.get(entry);
+    }
+
+    /**
+     * @param entry    The index of the word in the corpus.
+     * @param position The position of the token within the word.
+     * @return The index of the token in the {@link TokenSet}.
+     */
+    public int getToken(int entry, int position) {
+        return tokens.get(offsets.get(entry) + position);
+    }
+
+    /**
+     * Copies the tokens for a word into an existing array.
+     *
+     * @param entry       The index of the word in the corpus.
+     * @param destination The array to copy the tokens into. This must be at least as long as the word.
+     * @return The number of tokens in the word.
+     */
+    public int getTokens(int entry, int[] destination) {
+        int start = offsets.get(entry);
+        int length = offsets.get(entry + 1) - start;
+        for(int i = 0; i < length; i++){
+            destination[i] = tokens.get(start + i);
+        }
+        return length;
+    }
+
+    /**
+     * A corpus split into the words used for training, and the words held out to evaluate the network.
+     */
+    public static class Split {
+        private final TokenisedCorpus training;
+        private final TokenisedCorpus heldOut;
+
+        private Split(TokenisedCorpus training, TokenisedCorpus heldOut) {
+            this.training = training;
+            this.heldOut = heldOut;
+        }
+
+        public TokenisedCorpus getTraining() {
+            return training;
+        }
+
+        public TokenisedCorpus getHeldOut() {
+            return heldOut;
+        }
+    }
+}
@@ -2,14 +2,16 @@ package com.wabradshaw.ml.wordgenerator;
 
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
 import org.deeplearning4j.util.ModelSerializer;
-import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 
 import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Random;
+import java.util.concurrent.Future;
 
 /**
  * Main which allows you to train a neural network, including generating samples, and saves the output as a zip file
@@ -21,6 +23,8 @@ public class TrainingMain {
 
     private static final int LAYER_SIZE = 400;
     private static final double LEARNING_RATE = 0.2;
+    private static final InputEncoding INPUT_ENCODING = InputEncoding.ONE_HOT;
+    private static final int EMBEDDING_SIZE = 32;
 
     private static final int EPOCHS = 10;
     private static final int BATCHES = 50;
@@ -28,76 +32,195 @@ public class TrainingMain {
     private static final int SAMPLES = 10;
     private static final int SAMPLE_FREQUENCY = 50;
 
+    private static final Batching BATCHING = Batching.SHUFFLED;
+    private static final int DATA_THREADS = 2;
+    private static final int PREFETCH_BATCHES = 4;
+
+    private static final int WORKERS = 1;
+    private static final ParallelWrapper.TrainingMode TRAINING_MODE = ParallelWrapper.TrainingMode.AVERAGING;
+    private static final int AVERAGING_FREQUENCY = 5;
+
+    private static final double HELD_OUT_FRACTION = 0.05;
+    private static final int EVALUATION_BATCH_SIZE = 1024;
+    private static final int EVALUATION_THREADS = 2;
+    private static final int EARLY_STOPPING_PATIENCE = 3;
+    private static final double MIN_IMPROVEMENT = 0.001;
+
+    private static final MemoryMode MEMORY_MODE = MemoryMode.WORKSPACES;
+    // 0 leaves ND4J's off-heap memory uncapped
+    private static final int OFF_HEAP_BUDGET_MB = 0;
+
     private static final int SEED = 1234;
 
     private static final String OUTPUT_FILENAME = "src/main/resources/generatedModelPhonemes";
+    private static final String METRICS_FILENAME = "target/training-metrics.csv";
     private static final String EXISTING_NETWORK_FILENAME = null;
 
-    private static final WordGenerator wordGenerator = new WordGenerator(TOKEN_SET);
-    private static final Random random = new Random(SEED);
+    private static final String CHECKPOINT_DIRECTORY = "target/checkpoints";
+    private static final String BEST_MODEL_FILENAME = "target/checkpoints/best.zip";
+    private static final boolean RESUME_FROM_CHECKPOINT = true;
+    private static final int CHECKPOINT_FREQUENCY = 10;
+    private static final int CHECKPOINTS_KEPT = 3;
+
+    private static final WordGenerator wordGenerator = new WordGenerator(TOKEN_SET, 0.0);
 
     public static void main(String[] args) throws Exception {
 
-        MultiLayerNetwork network = getNetwork();
-        DataSetGenerator dataSetGenerator = new DataSetGenerator(TOKEN_SET);
+        if(OFF_HEAP_BUDGET_MB > 0){
+            MemoryMode.limitOffHeap(OFF_HEAP_BUDGET_MB * 1024L * 1024L);
+        }
+
+        File checkpointDirectory = new File(CHECKPOINT_DIRECTORY);
+        Checkpointer.Checkpoint checkpoint = RESUME_FROM_CHECKPOINT ? Checkpointer.loadLatest(checkpointDirectory)
+                                                                    : null;
+        TrainingState state = checkpoint != null ? checkpoint.getState() : new TrainingState(0, 0, new Random(SEED));
+        if(checkpoint != null){
+            System.out.println("Resuming from " + checkpoint.getFile() + " at " + state);
+        }
+
+        MultiLayerNetwork network = getNetwork(checkpoint);
+        InputEncoding inputEncoding = InputEncoding.of(network);
+        TokenisedCorpus.Split split = TokenisedCorpus.load(TOKEN_SET).split(HELD_OUT_FRACTION, SEED);
+        DataSetGenerator dataSetGenerator = new DataSetGenerator(split.getTraining(), inputEncoding, MEMORY_MODE);
+        WordDataSetIterator iterator = new WordDataSetIterator(dataSetGenerator, BATCHING, BATCHES, BATCH_SIZE,
+                                                               MAX_WORD_LENGTH, state.getRandom(), DATA_THREADS,
+                                                               Math.max(PREFETCH_BATCHES, WORKERS * 2));
+        iterator.setRecycleBuffers(WORKERS == 1);
+        iterator.skip(state.getBatch());
+        ParallelTrainer trainer = new ParallelTrainer(network, WORKERS, TRAINING_MODE, AVERAGING_FREQUENCY);
+        printPaddingReport(dataSetGenerator.getCorpus());
+
+        // With several workers the network is only updated at the end of each epoch, so that's the only checkpoint
+        Checkpointer checkpointer = new Checkpointer(network, iterator, checkpointDirectory, CHECKPOINTS_KEPT,
+                                                     WORKERS == 1 ? CHECKPOINT_FREQUENCY : 0, state.getEpoch());
+        TrainingMetrics metrics = new TrainingMetrics(new File(METRICS_FILENAME));
+        network.addListeners(metrics, checkpointer);
+        DataSetIterator instrumentedIterator = metrics.instrument(checkpointer.instrument(iterator));
+
+        HeldOutEvaluator evaluator = new HeldOutEvaluator(new DataSetGenerator(split.getHeldOut(), inputEncoding,
+                                                                               MEMORY_MODE),
+                                                          EVALUATION_BATCH_SIZE, MAX_WORD_LENGTH, EVALUATION_THREADS);
+        EarlyStopping earlyStopping = new EarlyStopping(EARLY_STOPPING_PATIENCE, MIN_IMPROVEMENT,
+                                                        new File(BEST_MODEL_FILENAME));
+        Future<HeldOutEvaluator.Result> evaluation = null;
 
         LocalDateTime startTime = LocalDateTime.now();
 
-        for (int epoch = 0; epoch < EPOCHS; epoch++) {
-            trainNetwork(network, dataSetGenerator);
+        for (int epoch = state.getEpoch(); epoch < EPOCHS; epoch++) {
+            trainNetwork(trainer, instrumentedIterator);
+            System.out.println("Epoch " + epoch + ": " + metrics.snapshot());
 
             if(epoch % SAMPLE_FREQUENCY == 0) {
                 printSamples(network, Integer.toString(epoch));
-                TimeLogger.printPredictedEndpoint(startTime, epoch, EPOCHS);
+                TimeLogger.printPredictedEndpoint(startTime, epoch - state.getEpoch(), EPOCHS - state.getEpoch());
             }
+
+            // The previous epoch was evaluated while this one trained
+            if(evaluation != null && checkEarlyStopping(earlyStopping, evaluation)){
+                evaluation = null;
+                break;
+            }
+            evaluation = evaluator.evaluate(network, epoch);
+        }
+        if(evaluation != null){
+            checkEarlyStopping(earlyStopping, evaluation);
         }
 
         LocalDateTime endTime = LocalDateTime.now();
-
-        printSamples(network, "FINAL");
+        trainer.close();
+        checkpointer.close();
+        iterator.shutdown();
+        evaluator.close();
+        metrics.close();
+
+        // Nothing is evaluated if training resumed from a checkpoint at the end of the last epoch
+        HeldOutEvaluator.Result best = earlyStopping.getBest();
+        MultiLayerNetwork bestNetwork = best != null ? best.getNetwork() : network;
+        if(best != null){
+            System.out.println("Best epoch " + best.getEpoch() + ": " + best);
+        }
+        printSamples(bestNetwork, "FINAL");
         TimeLogger.printDuration(Duration.between(startTime, endTime));
 
-        saveNetwork(network);
+        saveNetwork(bestNetwork);
 
         System.out.println("DONE");
     }
 
     /**
-     * Gets the Neural Network to use. If a file name has been supplied, then an existing network will be loaded and
-     * used. Otherwise, the system will create a new neural network.
+     * Gets the Neural Network to use. If training is being resumed, the network from the checkpoint is used. Otherwise
+     * if a file name has been supplied, then an existing network will be loaded and used. Failing that, the system
+     * will create a new neural network.
      *
+     * @param checkpoint The checkpoint training is being resumed from, or null.
      * @return A neural network.
      * @throws IOException
      */
-    private static MultiLayerNetwork getNetwork() throws IOException {
+    private static MultiLayerNetwork getNetwork(Checkpointer.Checkpoint checkpoint) throws IOException {
 
         MultiLayerNetwork network;
-        if(EXISTING_NETWORK_FILENAME == null) {
-            NetworkConfiguration config = new NetworkConfiguration(TOKEN_SET, LAYER_SIZE, LEARNING_RATE, SEED);
+        if(checkpoint != null) {
+            network = checkpoint.getNetwork();
+        } else if(EXISTING_NETWORK_FILENAME == null) {
+            NetworkConfiguration config = new NetworkConfiguration(TOKEN_SET, LAYER_SIZE, LEARNING_RATE, SEED,
+                                                                   INPUT_ENCODING, EMBEDDING_SIZE, MEMORY_MODE);
             network = config.createNetwork();
         } else {
             network = ModelSerializer.restoreMultiLayerNetwork(EXISTING_NETWORK_FILENAME + ".zip");
         }
+        // Saved networks keep the workspace modes they were trained with
+        MEMORY_MODE.apply(network);
         network.setListeners(new ScoreIterationListener(1));
         return network;
     }
 
     /**
-     * Train the network using DataSets from the supplied dataSetGenerator.
+     * Train the network for one epoch, using the DataSets from the supplied iterator. The iterator builds upcoming
+     * batches in the background while the network is fitting the current one. With more than one worker, the batches
+     * are shared between replicas of the network on different cores.
+     *
+     * @param trainer  The trainer for the network being trained.
+     * @param iterator The iterator producing the training data sets for each epoch.
+     */
+    private static void trainNetwork(ParallelTrainer trainer, DataSetIterator iterator) {
+        trainer.fit(iterator);
+    }
+
+    /**
+     * Waits for an evaluation of the held out words to finish, then prints it and passes it on to the early stopping.
      *
-     * @param network          The network being trained.
-     * @param dataSetGenerator The generator to use to produce training data sets.
+     * @param earlyStopping The early stopping for this training run.
+     * @param evaluation    The evaluation of the latest epoch.
+     * @return True if training should stop.
      */
-    private static void trainNetwork(MultiLayerNetwork network, DataSetGenerator dataSetGenerator) {
-        for(int batch = 0; batch < BATCHES; batch++) {
-            DataSet dataSet = dataSetGenerator.getDataSet(batch, BATCH_SIZE, MAX_WORD_LENGTH);
-
-            // dataSet.shuffle creates a new Random from the input seed, causing each batch/epoch to be shuffled the
-            // same way. This approach ensures separate runs with the same seed will be the same, but batches/epochs
-            // will be shuffled differently each time.
-            dataSet.shuffle(random.nextInt());
-            network.fit(dataSet);
+    private static boolean checkEarlyStopping(EarlyStopping earlyStopping, Future<HeldOutEvaluator.Result> evaluation)
+            throws Exception {
+        HeldOutEvaluator.Result result = evaluation.get();
+        System.out.println("Epoch " + result.getEpoch() + ": " + result);
+        boolean stop = earlyStopping.update(result);
+        if(stop){
+            System.out.println("Stopping early, as the held out loss hasn't improved since epoch " +
+                               earlyStopping.getBest().getEpoch());
         }
+        return stop;
+    }
+
+    /**
+     * Prints how much of an epoch is spent on padded time steps, both with fixed length batches and with batches
+     * bucketed by word length, so the saving from {@link Batching#BUCKETED} can be seen.
+     *
+     * @param corpus The corpus being trained on.
+     */
+    private static void printPaddingReport(TokenisedCorpus corpus) {
+        BatchPlan fixed = BatchPlan.sequential(corpus, BATCHES, BATCH_SIZE, MAX_WORD_LENGTH);
+        BatchPlan bucketed = BatchPlan.bucketed(corpus, BATCHES, BATCH_SIZE, MAX_WORD_LENGTH, new Random(SEED));
+
+        double saving = 1 - bucketed.getTimeSteps() * 1.0 / fixed.getTimeSteps();
+        System.out.println(String.format("Padding per epoch: %.1f%% of %d time steps with fixed batches, " +
+                                         "%.1f%% of %d time steps when bucketed (%.1f%% fewer time steps)",
+                                         fixed.getPaddingRatio(corpus) * 100, fixed.getTimeSteps(),
+                                         bucketed.getPaddingRatio(corpus) * 100, bucketed.getTimeSteps(),
+                                         saving * 100));
     }
 
     /**
@@ -108,12 +231,15 @@ public class TrainingMain {
      */
     private static void printSamples(MultiLayerNetwork network, String label) {
         System.out.println("\n -- " + label + " --------------------------");
+        // The network has been trained since the last samples, so any states cached from its old weights are wrong
+        wordGenerator.getPrefixCache().invalidate(network);
         wordGenerator.generate(SAMPLES, network).forEach(System.out::println);
         System.out.println(" -----------------------------------");
     }
 
     /**
-     * Serialises the network to disk so that it can either be used for generation, or trained further.
+     * Serialises the network to disk so that it can either be used for generation, or trained further. A
+     * {@link CompactModel} is also written, for quicker loading when generating.
      *
      * @param network The neural net being trained.
      * @throws IOException
@@ -121,6 +247,7 @@ public class TrainingMain {
     private static void saveNetwork(MultiLayerNetwork network) throws IOException {
         File locationToSave = new File(OUTPUT_FILENAME + ".zip");
         ModelSerializer.writeModel(network, locationToSave, true);
+        CompactModel.export(network, TOKEN_SET, new File(OUTPUT_FILENAME + CompactModel.EXTENSION));
     }
 
 }
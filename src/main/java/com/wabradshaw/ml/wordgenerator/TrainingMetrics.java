@@ -0,0 +1,455 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Records how long each training batch takes, split into the time spent waiting for the batch to be prepared and the
+ * time spent fitting it, along with the throughput, the amount of padding and the memory in use.
+ *
+ * This is a {@link org.deeplearning4j.optimize.api.TrainingListener}, so it needs to be added to the network. The
+ * network can't see how long it waits for data, so the iterator it trains from also needs to be wrapped using
+ * {@link #instrument(DataSetIterator)}. Each batch is written as a row of a CSV file, or as a line of JSON if the file
+ * name doesn't end in .csv. Totals across every batch so far are available from {@link #snapshot()}.
+ *
+ * A batch's fit time is the gap between the network taking it from the iterator and asking for the next one. That is
+ * only the time spent fitting when the network is trained with {@link
+ * org.deeplearning4j.nn.multilayer.MultiLayerNetwork#fit(DataSetIterator)}. A ParallelWrapper asks for the next batch
+ * as soon as any of its workers is free, while other batches are still being fitted, so with more than one worker the
+ * fit times, throughput and fraction of time spent waiting for data measure how quickly batches are handed out rather
+ * than how long they take to fit.
+ */
+public class TrainingMetrics extends BaseTrainingListener {
+
+    private static final String CSV_HEADER = "epoch,batch,examples,timeSteps,tokens,maskedFraction,prepMillis," +
+                                             "fitMillis,examplesPerSecond,tokensPerSecond,score,heapBytes,offHeapBytes";
+
+    private final Writer writer;
+    private final boolean csv;
+
+    private int epoch;
+    private int batch;
+    private double score = Double.NaN;
+
+    // The batch currently being fitted
+    private boolean fitting;
+    private long fitStart;
+    private long prepNanos;
+    private long examples;
+    private long timeSteps;
+    private long tokens;
+
+    private long totalBatches;
+    private long totalExamples;
+    private long totalTokens;
+    private long totalPrepNanos;
+    private long totalFitNanos;
+    private double totalMaskedFraction;
+    private long peakOffHeapBytes;
+    private BatchMetrics lastBatch;
+
+    // The memory used by the epoch in progress, sampled after every segment, and by the last finished epoch
+    private MemoryUsage epochMemory = MemoryUsage.start();
+    private MemoryUsage lastEpochMemory;
+
+    /**
+     * Creates a set of metrics which are only kept in memory.
+     */
+    public TrainingMetrics() {
+        this.writer = null;
+        this.csv = false;
+    }
+
+    /**
+     * Creates a set of metrics which are also written to a file, replacing anything already there.
+     *
+     * @param output The file to write each batch to. CSV is used if the name ends in .csv, otherwise JSON lines.
+     * @throws IOException If the file can't be created.
+     */
+    public TrainingMetrics(File output) throws IOException {
+        File directory = output.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+
+        this.writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8);
+        this.csv = output.getName().toLowerCase(Locale.ROOT).endsWith(".csv");
+        if(csv){
+            writer.write(CSV_HEADER);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    /**
+     * Wraps an iterator so the time spent waiting for each batch, and the size of each batch, is recorded. The
+     * network should be trained from the returned iterator.
+     *
+     * @param iterator The iterator producing the training batches.
+     * @return An iterator which produces the same batches.
+     */
+    public DataSetIterator instrument(DataSetIterator iterator) {
+        return new TimedIterator(iterator);
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration, int epoch) {
+        // With truncated backpropagation this is called once per segment, so the score is that of the last segment
+        score = model.score();
+        epochMemory.sample();
+    }
+
+    @Override
+    public void onEpochEnd(Model model) {
+        finishBatch();
+        synchronized (this) {
+            lastEpochMemory = epochMemory.finish();
+        }
+        epochMemory = MemoryUsage.start();
+        epoch++;
+        batch = 0;
+    }
+
+    /**
+     * Called just before the network asks for the next batch, which means it has finished fitting the last one.
+     */
+    private void batchRequested() {
+        finishBatch();
+    }
+
+    /**
+     * Called once the next batch has been produced, when the network is about to start fitting it.
+     */
+    private void batchReady(DataSet dataSet, long waited) {
+        long[] shape = dataSet.getFeatures().shape();
+        examples = shape[0];
+        timeSteps = shape.length > 2 ? shape[2] : 1;
+        tokens = dataSet.getLabelsMaskArray() == null ? examples * timeSteps
+                                                      : dataSet.getLabelsMaskArray().sumNumber().longValue();
+        prepNanos = waited;
+        fitting = true;
+        fitStart = System.nanoTime();
+    }
+
+    private void finishBatch() {
+        if(!fitting){
+            return;
+        }
+        fitting = false;
+        long fitNanos = System.nanoTime() - fitStart;
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapBytes = runtime.totalMemory() - runtime.freeMemory();
+        long offHeapBytes = Pointer.totalBytes();
+        epochMemory.sample();
+
+        BatchMetrics metrics = new BatchMetrics(epoch, batch++, examples, timeSteps, tokens, prepNanos, fitNanos,
+                                                score, heapBytes, offHeapBytes);
+        synchronized (this) {
+            totalBatches++;
+            totalExamples += examples;
+            totalTokens += tokens;
+            totalPrepNanos += prepNanos;
+            totalFitNanos += fitNanos;
+            totalMaskedFraction += metrics.getMaskedFraction();
+            peakOffHeapBytes = Math.max(peakOffHeapBytes, offHeapBytes);
+            lastBatch = metrics;
+        }
+        write(metrics);
+    }
+
+    private void write(BatchMetrics metrics) {
+        if(writer == null){
+            return;
+        }
+        try {
+            writer.write(csv ? metrics.toCsv() : metrics.toJson());
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the training metrics.", e);
+        }
+    }
+
+    /**
+     * Closes the output file, if there is one.
+     */
+    public void close() {
+        if(writer != null){
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not close the training metrics file.", e);
+            }
+        }
+    }
+
+    /**
+     * @return The totals across every batch recorded so far.
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(totalBatches, totalExamples, totalTokens, totalPrepNanos, totalFitNanos,
+                            totalBatches == 0 ? 0 : totalMaskedFraction / totalBatches, peakOffHeapBytes, lastBatch,
+                            lastEpochMemory);
+    }
+
+    /**
+     * The measurements for a single batch. Times are in milliseconds, and memory in bytes.
+     */
+    public static class BatchMetrics {
+        private final int epoch;
+        private final int batch;
+        private final long examples;
+        private final long timeSteps;
+        private final long tokens;
+        private final double prepMillis;
+        private final double fitMillis;
+        private final double score;
+        private final long heapBytes;
+        private final long offHeapBytes;
+
+        private BatchMetrics(int epoch, int batch, long examples, long timeSteps, long tokens, long prepNanos,
+                             long fitNanos, double score, long heapBytes, long offHeapBytes) {
+            this.epoch = epoch;
+            this.batch = batch;
+            this.examples = examples;
+            this.timeSteps = timeSteps;
+            this.tokens = tokens;
+            this.prepMillis = prepNanos / 1e6;
+            this.fitMillis = fitNanos / 1e6;
+            this.score = score;
+            this.heapBytes = heapBytes;
+            this.offHeapBytes = offHeapBytes;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        public int getBatch() {
+            return batch;
+        }
+
+        public long getExamples() {
+            return examples;
+        }
+
+        public long getTimeSteps() {
+            return timeSteps;
+        }
+
+        /**
+         * @return The number of unmasked labels in the batch, i.e. the number of tokens the network was trained on.
+         */
+        public long getTokens() {
+            return tokens;
+        }
+
+        /**
+         * @return The fraction of the time steps in the batch which were padding.
+         */
+        public double getMaskedFraction() {
+            long cells = examples * timeSteps;
+            return cells == 0 ? 0 : 1 - tokens * 1.0 / cells;
+        }
+
+        /**
+         * @return The time the network spent waiting for this batch to be ready.
+         */
+        public double getPrepMillis() {
+            return prepMillis;
+        }
+
+        /**
+         * @return The time the network spent fitting this batch. With more than one parallel worker, this is only the
+         *         time until the next batch was handed out.
+         */
+        public double getFitMillis() {
+            return fitMillis;
+        }
+
+        public double getExamplesPerSecond() {
+            return examples * 1000 / (prepMillis + fitMillis);
+        }
+
+        public double getTokensPerSecond() {
+            return tokens * 1000 / (prepMillis + fitMillis);
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public long getHeapBytes() {
+            return heapBytes;
+        }
+
+        /**
+         * @return The memory allocated outside the Java heap, e.g. by ND4J arrays, once the batch had been fitted.
+         */
+        public long getOffHeapBytes() {
+            return offHeapBytes;
+        }
+
+        private String toCsv() {
+            return String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%.4f,%.3f,%.3f,%.1f,%.1f,%.6f,%d,%d",
+                                 epoch, batch, examples, timeSteps, tokens, getMaskedFraction(), prepMillis,
+                                 fitMillis, getExamplesPerSecond(), getTokensPerSecond(), score, heapBytes,
+                                 offHeapBytes);
+        }
+
+        private String toJson() {
+            return String.format(Locale.ROOT, "{\"epoch\":%d,\"batch\":%d,\"examples\":%d,\"timeSteps\":%d," +
+                                 "\"tokens\":%d,\"maskedFraction\":%.4f,\"prepMillis\":%.3f,\"fitMillis\":%.3f," +
+                                 "\"examplesPerSecond\":%.1f,\"tokensPerSecond\":%.1f,\"score\":%s," +
+                                 "\"heapBytes\":%d,\"offHeapBytes\":%d}",
+                                 epoch, batch, examples, timeSteps, tokens, getMaskedFraction(), prepMillis,
+                                 fitMillis, getExamplesPerSecond(), getTokensPerSecond(),
+                                 Double.isNaN(score) ? "null" : String.format(Locale.ROOT, "%.6f", score),
+                                 heapBytes, offHeapBytes);
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+
+    /**
+     * The totals across every batch recorded up to a point in time.
+     */
+    public static class Snapshot {
+        private final long batches;
+        private final long examples;
+        private final long tokens;
+        private final double prepMillis;
+        private final double fitMillis;
+        private final double meanMaskedFraction;
+        private final long peakOffHeapBytes;
+        private final BatchMetrics lastBatch;
+        private final MemoryUsage lastEpochMemory;
+
+        private Snapshot(long batches, long examples, long tokens, long prepNanos, long fitNanos,
+                         double meanMaskedFraction, long peakOffHeapBytes, BatchMetrics lastBatch,
+                         MemoryUsage lastEpochMemory) {
+            this.batches = batches;
+            this.examples = examples;
+            this.tokens = tokens;
+            this.prepMillis = prepNanos / 1e6;
+            this.fitMillis = fitNanos / 1e6;
+            this.meanMaskedFraction = meanMaskedFraction;
+            this.peakOffHeapBytes = peakOffHeapBytes;
+            this.lastBatch = lastBatch;
+            this.lastEpochMemory = lastEpochMemory;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public long getExamples() {
+            return examples;
+        }
+
+        public long getTokens() {
+            return tokens;
+        }
+
+        public double getPrepMillis() {
+            return prepMillis;
+        }
+
+        public double getFitMillis() {
+            return fitMillis;
+        }
+
+        /**
+         * @return The fraction of the total time spent waiting for data. Anything much above 0 is a pipeline stall.
+         */
+        public double getPrepFraction() {
+            double total = prepMillis + fitMillis;
+            return total == 0 ? 0 : prepMillis / total;
+        }
+
+        public double getExamplesPerSecond() {
+            double total = prepMillis + fitMillis;
+            return total == 0 ? 0 : examples * 1000 / total;
+        }
+
+        public double getTokensPerSecond() {
+            double total = prepMillis + fitMillis;
+            return total == 0 ? 0 : tokens * 1000 / total;
+        }
+
+        public double getMeanMaskedFraction() {
+            return meanMaskedFraction;
+        }
+
+        public long getPeakOffHeapBytes() {
+            return peakOffHeapBytes;
+        }
+
+        /**
+         * @return The most recent batch, or null if no batches have been recorded.
+         */
+        public BatchMetrics getLastBatch() {
+            return lastBatch;
+        }
+
+        /**
+         * @return The memory used during the most recent epoch, including its peak and garbage collection pauses, or
+         *         null if no epochs have finished.
+         */
+        public MemoryUsage getLastEpochMemory() {
+            return lastEpochMemory;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d batches, %.0f examples/s, %.0f tokens/s, %.1f%% waiting for data, " +
+                                 "%.1f%% padding, peak off-heap %d MB",
+                                 batches, getExamplesPerSecond(), getTokensPerSecond(), getPrepFraction() * 100,
+                                 meanMaskedFraction * 100, peakOffHeapBytes / (1024 * 1024)) +
+                   (lastEpochMemory == null ? "" : "; last epoch " + lastEpochMemory);
+        }
+    }
+
+    /**
+     * Passes everything through to another iterator, timing how long each call to next() takes.
+     */
+    private class TimedIterator extends ForwardingDataSetIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private TimedIterator(DataSetIterator iterator) {
+            super(iterator);
+        }
+
+        @Override
+        public DataSet next() {
+            batchRequested();
+            long start = System.nanoTime();
+            DataSet dataSet = iterator.next();
+            batchReady(dataSet, System.nanoTime() - start);
+            return dataSet;
+        }
+
+        @Override
+        public DataSet next(int num) {
+            batchRequested();
+            long start = System.nanoTime();
+            DataSet dataSet = iterator.next(num);
+            batchReady(dataSet, System.nanoTime() - start);
+            return dataSet;
+        }
+    }
+}
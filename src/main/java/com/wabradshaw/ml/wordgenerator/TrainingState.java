@@ -0,0 +1,52 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * How far training had got when a checkpoint was taken, beyond what is stored in the network itself. Together with
+ * the parameters and updater state this is enough to carry on exactly where training stopped.
+ *
+ * The network doesn't use dropout or any other randomness while training, so the only random number generator that
+ * needs to be kept is the one the {@link WordDataSetIterator} draws its batch plans and shuffle seeds from.
+ */
+public class TrainingState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int epoch;
+    private final int batch;
+    private final Random random;
+
+    /**
+     * @param epoch  The epoch which was in progress, counting from 0.
+     * @param batch  The number of batches of that epoch which had already been trained on.
+     * @param random The {@link Random} as it was just before that epoch was planned.
+     */
+    public TrainingState(int epoch, int batch, Random random) {
+        this.epoch = epoch;
+        this.batch = batch;
+        this.random = random;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    /**
+     * @return A {@link Random} to create the {@link WordDataSetIterator} with, which will then plan the same epoch.
+     *         The iterator advances it, so it can only be used once.
+     */
+    public Random getRandom() {
+        return random;
+    }
+
+    @Override
+    public String toString() {
+        return "epoch " + epoch + ", batch " + batch;
+    }
+}
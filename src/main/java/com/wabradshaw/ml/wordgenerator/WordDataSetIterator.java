@@ -0,0 +1,331 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link DataSetIterator} over an epoch of training batches from a {@link DataSetGenerator}. Batches are tokenised
+ * and vectorised on a pool of background threads, with up to a fixed number of batches prepared ahead of the one
+ * currently being trained on. This means the network doesn't stall between batches while the next one is built.
+ *
+ * Batches are always returned in order, and each one is shuffled using a seed taken from the supplied {@link Random},
+ * so runs with the same seed produce the same batches regardless of how many threads are used. This also means training
+ * can be resumed part way through an epoch, by creating a new iterator from {@link #getEpochRandom()} and skipping the
+ * batches that had already been taken.
+ */
+public class WordDataSetIterator implements DataSetIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DataSetGenerator dataSetGenerator;
+    private final Batching batching;
+    private final int batches;
+    private final int batchSize;
+    private final int maxWordLength;
+    private final Random random;
+    private final int prefetch;
+
+    private final ExecutorService executor;
+    private final Deque<Future<DataSet>> pending;
+
+    private BatchPlan plan;
+    private int[] seeds;
+    private byte[] epochRandom;
+    private boolean started;
+
+    private DataSetPreProcessor preProcessor;
+    private boolean recycleBuffers = true;
+    private DataSet previous;
+    private int submitted;
+    private int taken;
+
+    /**
+     * @param dataSetGenerator The generator used to produce each batch.
+     * @param batches          The number of batches in an epoch. This is capped at the number the corpus can fill.
+     * @param batchSize        The number of words from the corpus used in each batch.
+     * @param maxWordLength    The maximum number of tokens in a word. Longer words are ignored.
+     * @param random           The source of the seeds used to shuffle each batch.
+     * @param threads          The number of background threads used to build batches.
+     * @param prefetch         The maximum number of batches that can be built ahead of the current one.
+     */
+    public WordDataSetIterator(DataSetGenerator dataSetGenerator, int batches, int batchSize, int maxWordLength,
+                               Random random, int threads, int prefetch) {
+        this(dataSetGenerator, Batching.SEQUENTIAL, batches, batchSize, maxWordLength, random, threads, prefetch);
+    }
+
+    /**
+     * @param dataSetGenerator The generator used to produce each batch.
+     * @param batching         How the corpus is split into batches for each epoch.
+     * @param batches          The number of batches in an epoch. This is capped at the number the corpus can fill.
+     * @param batchSize        The number of words from the corpus used in each batch.
+     * @param maxWordLength    The maximum number of tokens in a word. Longer words are ignored.
+     * @param random           The source of the seeds used to shuffle each batch.
+     * @param threads          The number of background threads used to build batches.
+     * @param prefetch         The maximum number of batches that can be built ahead of the current one.
+     */
+    public WordDataSetIterator(DataSetGenerator dataSetGenerator, Batching batching, int batches, int batchSize,
+                               int maxWordLength, Random random, int threads, int prefetch) {
+        if(threads < 1 || prefetch < 1){
+            throw new IllegalArgumentException("At least one thread and one prefetched batch are required.");
+        }
+
+        this.dataSetGenerator = dataSetGenerator;
+        this.batching = batching;
+        this.batches = batches;
+        this.batchSize = batchSize;
+        this.maxWordLength = maxWordLength;
+        this.random = random;
+        this.prefetch = prefetch;
+
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "dataset-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pending = new ArrayDeque<>(prefetch);
+
+        startEpoch();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return taken < plan.getBatchCount();
+    }
+
+    @Override
+    public DataSet next() {
+        if(!hasNext()){
+            throw new NoSuchElementException("All " + plan.getBatchCount() + " batches in this epoch have been used.");
+        }
+
+        Future<DataSet> future = pending.poll();
+        started = true;
+        taken++;
+        fillQueue();
+
+        // Asking for the next batch means the network has finished with the last one, so its buffers can be reused.
+        if(recycleBuffers && previous != null){
+            dataSetGenerator.recycle(previous);
+        }
+
+        DataSet dataSet = await(future);
+        previous = dataSet;
+        if(preProcessor != null){
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    /**
+     * Batches are planned in advance, so this only accepts the iterator's own batch size.
+     *
+     * @param num The number of words in the batch, which must be {@link #batch()}.
+     * @return The next batch.
+     */
+    @Override
+    public DataSet next(int num) {
+        if(num != batchSize){
+            throw new IllegalArgumentException("Batches are a fixed size of " + batchSize + " words, not " + num + ".");
+        }
+        return next();
+    }
+
+    /**
+     * Moves on to a new epoch, with a new plan and new shuffle seeds. If nothing has been taken from the current epoch
+     * yet, it is kept instead, so an epoch which has just been planned or skipped into isn't thrown away.
+     */
+    @Override
+    public void reset() {
+        if(!started){
+            return;
+        }
+        cancelPending();
+        startEpoch();
+    }
+
+    /**
+     * Skips over the start of the current epoch without building those batches, for resuming training part way
+     * through an epoch.
+     *
+     * @param batches The number of batches at the start of the epoch which have already been trained on.
+     */
+    public void skip(int batches) {
+        cancelPending();
+        submitted = Math.min(batches, plan.getBatchCount());
+        taken = submitted;
+        previous = null;
+        fillQueue();
+    }
+
+    /**
+     * @return The number of batches which have been taken from the current epoch.
+     */
+    public int getBatchesTaken() {
+        return taken;
+    }
+
+    /**
+     * @return A copy of the {@link Random} as it was just before the current epoch was planned. An iterator created
+     *         with it plans the same epoch again.
+     */
+    public Random getEpochRandom() {
+        return restoreRandom(epochRandom);
+    }
+
+    /**
+     * @return A copy of the {@link Random} as it is now. An iterator created with it plans the same epoch as this
+     *         iterator's next one.
+     */
+    public Random getRandom() {
+        return restoreRandom(saveRandom(random));
+    }
+
+    /**
+     * Sets whether the buffers behind each batch are reused once the next batch is requested. This is on by default,
+     * and should only be turned off if batches are still in use after the next one has been requested, e.g. when
+     * several models are trained from the same iterator at once.
+     *
+     * @param recycleBuffers Whether to reuse the buffers.
+     */
+    public void setRecycleBuffers(boolean recycleBuffers) {
+        this.recycleBuffers = recycleBuffers;
+        this.previous = null;
+    }
+
+    /**
+     * Stops the background threads. The iterator can't be used after this has been called.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public int inputColumns() {
+        return dataSetGenerator.getInputEncoding().getInputSize(dataSetGenerator.getTokenSet());
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return dataSetGenerator.getTokenSet().getLength();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // Batches are already prepared asynchronously, so there's no point wrapping this in another prefetcher.
+        return false;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return Arrays.asList(dataSetGenerator.getTokenSet().getTokens());
+    }
+
+    /**
+     * @return The plan for the batches in the current epoch.
+     */
+    public BatchPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Plans the batches for the epoch and draws the shuffle seeds for every batch up front, then starts building the
+     * first few batches. The seeds are drawn in the same order the batches are used, so the sequence matches shuffling
+     * each batch in turn.
+     */
+    private void startEpoch() {
+        epochRandom = saveRandom(random);
+        started = false;
+        plan = batching.plan(dataSetGenerator.getCorpus(), batches, batchSize, maxWordLength, random);
+        seeds = new int[plan.getBatchCount()];
+        for(int batch = 0; batch < seeds.length; batch++){
+            seeds[batch] = random.nextInt();
+        }
+        submitted = 0;
+        taken = 0;
+        fillQueue();
+    }
+
+    private void fillQueue() {
+        while(submitted < plan.getBatchCount() && submitted - taken < prefetch){
+            BatchPlan epochPlan = plan;
+            int batch = submitted;
+            int seed = seeds[batch];
+            pending.add(executor.submit(() -> dataSetGenerator.getDataSet(epochPlan, batch, seed)));
+            submitted++;
+        }
+    }
+
+    private void cancelPending() {
+        for(Future<DataSet> future : pending){
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+
+    private static byte[] saveRandom(Random random) {
+        try(ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes)){
+            out.writeObject(random);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not save the state of the random number generator.", e);
+        }
+    }
+
+    private static Random restoreRandom(byte[] state) {
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state))){
+            return (Random) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException("Could not restore the state of the random number generator.", e);
+        }
+    }
+
+    private DataSet await(Future<DataSet> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a batch to be built.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not build a training batch.", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A thread-safe way to generate words from a trained network, for use by many request threads at once.
+ *
+ * A {@link MultiLayerNetwork} stores its RNN state between time steps, so a single network can't be used by more than
+ * one thread. Instead, each worker thread owns its own clone of the network. The clones all report the original
+ * network as their model, so they share one {@link PrefixCache}'s entries. Requests are put on a shared queue, and a
+ * worker takes as many waiting requests as fit in a single batch, generates all of their words with one call to
+ * {@link WordGenerator#generate(int, TokenPredictor)}, then splits the results back up between the requests. The
+ * number of words generated per second and the time requests take can be read from {@link #getMetrics()}.
+ */
+public class WordGenerationService {
+
+    private final WordGenerator wordGenerator;
+    private final int maxBatchSize;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final GenerationMetrics metrics = new GenerationMetrics();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param tokenSet        The {@link TokenSet} the network was trained on.
+     * @param minDistribution The minimum probability a token needs to be generated.
+     * @param network         The trained network. This is cloned for each worker, and isn't used directly.
+     * @param workers         The number of worker threads. Usually the number of available cores.
+     * @param maxBatchSize    The most words a worker generates at once. Requests for more words than this are
+     *                        generated in a batch of their own.
+     */
+    public WordGenerationService(TokenSet tokenSet, double minDistribution, MultiLayerNetwork network, int workers,
+                                 int maxBatchSize) {
+        if(workers < 1 || maxBatchSize < 1){
+            throw new IllegalArgumentException("At least one worker and a batch size of at least one are required.");
+        }
+
+        this.wordGenerator = new WordGenerator(tokenSet, minDistribution);
+        this.maxBatchSize = maxBatchSize;
+
+        for(int i = 0; i < workers; i++){
+            TokenPredictor predictor = new NetworkPredictor(network.clone(), tokenSet, network);
+            Thread thread = new Thread(() -> work(predictor), "word-generation-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            this.workers.add(thread);
+        }
+    }
+
+    /**
+     * Asks for some words to be generated, without waiting for them.
+     *
+     * @param words The number of words to generate.
+     * @return A future which completes with the generated words.
+     */
+    public Future<List<String>> submit(int words) {
+        if(!running){
+            throw new RejectedExecutionException("The word generation service has been shut down.");
+        }
+        Request request = new Request(words);
+        queue.add(request);
+
+        // The service may have shut down after the check above, but before its queue was drained
+        if(!running){
+            rejectQueued();
+        }
+        return request.result;
+    }
+
+    /**
+     * Generates some words, waiting until they're ready.
+     *
+     * @param words The number of words to generate.
+     * @return The generated words.
+     */
+    public List<String> generate(int words) {
+        try {
+            return submit(words).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for words to be generated.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not generate words.", e.getCause());
+        }
+    }
+
+    /**
+     * @return The throughput and latency of the requests completed so far.
+     */
+    public GenerationMetrics.Snapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Stops the worker threads, waiting for any batch in progress to finish. Any requests which haven't been started
+     * yet fail.
+     */
+    public void shutdown() {
+        running = false;
+        for(Thread worker : workers){
+            worker.interrupt();
+        }
+        rejectQueued();
+
+        // A worker may have been part way through a batch, so the queue is drained again once they have all stopped
+        for(Thread worker : workers){
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        rejectQueued();
+    }
+
+    /**
+     * Fails every request still waiting in the queue.
+     */
+    private void rejectQueued() {
+        Request request;
+        while((request = queue.poll()) != null){
+            reject(request);
+        }
+    }
+
+    private static void reject(Request request) {
+        request.result.completeExceptionally(
+                new RejectedExecutionException("The word generation service has been shut down."));
+    }
+
+    /**
+     * The loop run by each worker. Waits for a request, then adds any other waiting requests that fit in the batch.
+     * A request which doesn't fit is held over to start the worker's next batch.
+     */
+    private void work(TokenPredictor predictor) {
+        List<Request> batch = new ArrayList<>();
+        Request heldOver = null;
+
+        try {
+            while(running){
+                Request first = heldOver != null ? heldOver : queue.take();
+                heldOver = null;
+
+                batch.clear();
+                batch.add(first);
+                int words = first.words;
+
+                Request next;
+                while(words < maxBatchSize && (next = queue.poll()) != null){
+                    if(words + next.words > maxBatchSize){
+                        heldOver = next;
+                        break;
+                    }
+                    batch.add(next);
+                    words += next.words;
+                }
+
+                generate(predictor, batch, words);
+            }
+        } catch (InterruptedException e) {
+            // Shutting down, which is handled below
+        } finally {
+            // The held over request has already been taken from the queue, so shutting down won't fail it
+            if(heldOver != null){
+                reject(heldOver);
+            }
+        }
+    }
+
+    private void generate(TokenPredictor predictor, List<Request> batch, int words) {
+        try {
+            List<String> generated = wordGenerator.generate(words, predictor);
+
+            // The metrics are recorded first, so they already include a request by the time its caller sees the words
+            long now = System.nanoTime();
+            metrics.recordBatch();
+            for(Request request : batch){
+                metrics.recordRequest(request.words, now - request.created);
+            }
+
+            int start = 0;
+            for(Request request : batch){
+                request.result.complete(new ArrayList<>(generated.subList(start, start + request.words)));
+                start += request.words;
+            }
+
+        } catch (RuntimeException e) {
+            for(Request request : batch){
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class Request {
+        private final int words;
+        private final long created = System.nanoTime();
+        private final CompletableFuture<List<String>> result = new CompletableFuture<>();
+
+        private Request(int words) {
+            if(words < 1){
+                throw new IllegalArgumentException("At least one word must be requested.");
+            }
+            this.words = words;
+        }
+    }
+}
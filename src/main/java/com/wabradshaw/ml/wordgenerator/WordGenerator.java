@@ -1,81 +1,472 @@
 package com.wabradshaw.ml.wordgenerator;
 
+import com.wabradshaw.ml.wordgenerator.decoding.Sampler;
+import com.wabradshaw.ml.wordgenerator.decoding.ThresholdSampler;
 import com.wabradshaw.ml.wordgenerator.tokenisation.Tokeniser;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.factory.Nd4j;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.stream.DoubleStream;
+import java.util.function.Function;
 
 public class WordGenerator {
 
+    private static final int START_TOKEN_ID = 0;
+    private static final int EOF_TOKEN_ID = 1;
+
+    // The batch is compacted once this fraction of its rows or fewer are still generating
+    private static final double COMPACTION_THRESHOLD = 0.75;
+
+    private static final int DEFAULT_PREFIX_CACHE_SIZE = 1024;
+
+    private final TokenSet tokenSet;
     private final Tokeniser tokeniser;
     private final int possibleTokenCount;
 
-    private final double minDistribution;
+    private final Sampler sampler;
+    private final PrefixCache prefixCache;
+    private final boolean sampleMemoryEveryStep;
+
+    // The memory used by the last call on each thread, as generators are shared between request threads
+    private final ThreadLocal<MemoryUsage> lastMemoryUsage = new ThreadLocal<>();
 
     public WordGenerator(TokenSet tokenSet) {
         this(tokenSet, 0.0);
     }
 
     public WordGenerator(TokenSet tokenSet, double minDistribution) {
+        this(tokenSet, new ThresholdSampler(minDistribution));
+    }
+
+    /**
+     * @param tokenSet              The {@link TokenSet} the network was trained on.
+     * @param minDistribution       The minimum probability a token needs to be chosen.
+     * @param sampleMemoryEveryStep Whether the memory is sampled after every time step, rather than only at the start
+     *                              and end of each call. This catches the peak, but adds a native call to every step.
+     */
+    public WordGenerator(TokenSet tokenSet, double minDistribution, boolean sampleMemoryEveryStep) {
+        this(tokenSet, new ThresholdSampler(minDistribution), new PrefixCache(DEFAULT_PREFIX_CACHE_SIZE),
+             sampleMemoryEveryStep);
+    }
+
+    /**
+     * @param tokenSet The {@link TokenSet} the network was trained on.
+     * @param sampler  How each token is chosen from the network's output when generating words.
+     */
+    public WordGenerator(TokenSet tokenSet, Sampler sampler) {
+        this(tokenSet, sampler, new PrefixCache(DEFAULT_PREFIX_CACHE_SIZE));
+    }
+
+    /**
+     * @param tokenSet    The {@link TokenSet} the network was trained on.
+     * @param sampler     How each token is chosen from the network's output when generating words.
+     * @param prefixCache Where to remember the network's state after each prefix words have been generated from. This
+     *                    can be shared between generators.
+     */
+    public WordGenerator(TokenSet tokenSet, Sampler sampler, PrefixCache prefixCache) {
+        this(tokenSet, sampler, prefixCache, false);
+    }
+
+    /**
+     * @param tokenSet              The {@link TokenSet} the network was trained on.
+     * @param sampler               How each token is chosen from the network's output when generating words.
+     * @param prefixCache           Where to remember the network's state after each prefix words have been generated
+     *                              from. This can be shared between generators.
+     * @param sampleMemoryEveryStep Whether the memory is sampled after every time step, rather than only at the start
+     *                              and end of each call. This catches the peak, but adds a native call to every step.
+     */
+    public WordGenerator(TokenSet tokenSet, Sampler sampler, PrefixCache prefixCache, boolean sampleMemoryEveryStep) {
+        this.tokenSet = tokenSet;
         this.tokeniser = tokenSet.getTokeniser();
         this.possibleTokenCount = tokenSet.getLength();
-        this.minDistribution = minDistribution;
+        this.sampler = sampler;
+        this.prefixCache = prefixCache;
+        this.sampleMemoryEveryStep = sampleMemoryEveryStep;
+    }
+
+    public PrefixCache getPrefixCache() {
+        return prefixCache;
     }
 
+    /**
+     * @return The memory used by the last call to generate words or search for them on this thread, or null if there
+     *         hasn't been one. This is sampled at the start and end of the call, and after every time step if the
+     *         generator was created to do so.
+     */
+    public MemoryUsage getLastMemoryUsage() {
+        return lastMemoryUsage.get();
+    }
+
+    /**
+     * Generates a batch of words. Each word finishes as soon as it produces an end of file token, and generation
+     * stops once every word has finished. Finished words are periodically dropped from the batch, along with their
+     * stored RNN state, so later time steps only run the words which are still going.
+     *
+     * @param sampleCount The number of words to generate.
+     * @param network     The trained network. Its stored RNN state is cleared and then overwritten.
+     * @return The generated words, without their end of file tokens.
+     */
     public List<String> generate(int sampleCount, MultiLayerNetwork network) {
-        INDArray initializationInput = Nd4j.zeros(sampleCount, possibleTokenCount, 1);
-        for(int i = 0; i < sampleCount; i++){
-            initializationInput.putScalar(new int[]{i, 0, 0}, 1.0);
+        return generate(sampleCount, new NetworkPredictor(network, tokenSet));
+    }
+
+    /**
+     * Generates a batch of words using any {@link TokenPredictor}, such as an {@link LstmEngine}.
+     *
+     * @param sampleCount The number of words to generate.
+     * @param predictor   The predictor for the trained network. Its stored state is cleared and then overwritten.
+     * @return The generated words, without their end of file tokens.
+     * @see #generate(int, MultiLayerNetwork)
+     */
+    public List<String> generate(int sampleCount, TokenPredictor predictor) {
+        return toText(generateTokens(sampleCount, predictor));
+    }
+
+    /**
+     * Generates a batch of words which all start with the same prefix, e.g. a brand name's stem.
+     *
+     * @param sampleCount The number of words to generate.
+     * @param prefix      The start of every word, in the same form as the words the network was trained on.
+     * @param network     The trained network. Its stored RNN state is overwritten.
+     * @return The generated words, including the prefix but without their end of file tokens.
+     * @see #generateTokens(int, int[], TokenPredictor)
+     */
+    public List<String> generate(int sampleCount, String prefix, MultiLayerNetwork network) {
+        return generate(sampleCount, prefix, new NetworkPredictor(network, tokenSet));
+    }
+
+    /**
+     * Generates a batch of words which all start with the same prefix, using any {@link TokenPredictor}.
+     *
+     * @param sampleCount The number of words to generate.
+     * @param prefix      The start of every word, in the same form as the words the network was trained on.
+     * @param predictor   The predictor for the trained network. Its stored state is overwritten.
+     * @return The generated words, including the prefix but without their end of file tokens.
+     * @see #generateTokens(int, int[], TokenPredictor)
+     */
+    public List<String> generate(int sampleCount, String prefix, TokenPredictor predictor) {
+        int[] prefixTokens = tokeniser.tokenise(prefix).stream().mapToInt(Integer::intValue).toArray();
+        return toText(generateTokens(sampleCount, prefixTokens, predictor));
+    }
+
+    /**
+     * Generates a batch of words as token ids, rather than text. This is useful when the words will be processed
+     * further, e.g. by an {@link ArpabetMapper}, as the text doesn't need to be parsed again.
+     *
+     * @param sampleCount The number of words to generate.
+     * @param network     The trained network. Its stored RNN state is cleared and then overwritten.
+     * @return The tokens of each generated word, without their end of file tokens.
+     * @see #generate(int, MultiLayerNetwork)
+     */
+    public List<int[]> generateTokens(int sampleCount, MultiLayerNetwork network) {
+        return generateTokens(sampleCount, new NetworkPredictor(network, tokenSet));
+    }
+
+    /**
+     * Generates a batch of words as token ids, using any {@link TokenPredictor}.
+     *
+     * @param sampleCount The number of words to generate.
+     * @param predictor   The predictor for the trained network. Its stored state is cleared and then overwritten.
+     * @return The tokens of each generated word, without their end of file tokens.
+     * @see #generateTokens(int, MultiLayerNetwork)
+     */
+    public List<int[]> generateTokens(int sampleCount, TokenPredictor predictor) {
+        return measure(predictor, measured -> startWords(sampleCount, measured));
+    }
+
+    /**
+     * Starts every word in the batch from the start token, then generates the rest of them.
+     */
+    private List<int[]> startWords(int sampleCount, TokenPredictor predictor) {
+        int[] startTokens = new int[sampleCount];
+        Arrays.fill(startTokens, START_TOKEN_ID);
+        double[] probabilities = new double[sampleCount * possibleTokenCount];
+
+        predictor.reset(sampleCount);
+        predictor.step(startTokens, sampleCount, probabilities);
+
+        return continueWords(sampleCount, new int[0], predictor, probabilities);
+    }
+
+    /**
+     * Generates a batch of words which all start with the same prefix, as token ids. The prefix is only run through
+     * the network once, with a single row, and every row of the batch then starts from the state it left. That state
+     * is kept in the {@link PrefixCache}, so later batches with the same prefix and model don't run the prefix at all.
+     *
+     * @param sampleCount The number of words to generate.
+     * @param prefix      The tokens every word starts with.
+     * @param predictor   The predictor for the trained network. Its stored state is overwritten.
+     * @return The tokens of each generated word, including the prefix but without their end of file tokens.
+     */
+    public List<int[]> generateTokens(int sampleCount, int[] prefix, TokenPredictor predictor) {
+        return measure(predictor, measured -> startWords(sampleCount, prefix, measured));
+    }
+
+    /**
+     * Starts every word in the batch from the state after the prefix, then generates the rest of them.
+     */
+    private List<int[]> startWords(int sampleCount, int[] prefix, TokenPredictor predictor) {
+        if(prefix.length >= possibleTokenCount){
+            throw new IllegalArgumentException("The prefix must be shorter than " + possibleTokenCount + " tokens.");
+        }
+        for(int token : prefix){
+            if(token == START_TOKEN_ID || token == EOF_TOKEN_ID || token < 0 || token >= possibleTokenCount){
+                throw new IllegalArgumentException("The prefix can't contain token " + token);
+            }
         }
 
-        network.rnnClearPreviousState();
-        INDArray output = network.rnnTimeStep(initializationInput);
+        PrefixCache.Entry start = prefixCache.get(predictor.getModel(), tokenSet, prefix);
+        if(start == null){
+            start = runPrefix(prefix, predictor);
+            prefixCache.put(predictor.getModel(), tokenSet, prefix, start);
+        }
+
+        double[] probabilities = new double[sampleCount * possibleTokenCount];
+        for(int row = 0; row < sampleCount; row++){
+            System.arraycopy(start.getProbabilities(), 0, probabilities, row * possibleTokenCount, possibleTokenCount);
+        }
+        predictor.setState(start.getState(), sampleCount);
+
+        return continueWords(sampleCount, prefix, predictor, probabilities);
+    }
+
+    /**
+     * Runs the start token and a prefix through a single row, and captures the state it leaves.
+     */
+    private PrefixCache.Entry runPrefix(int[] prefix, TokenPredictor predictor) {
+        int[] token = {START_TOKEN_ID};
+        double[] probabilities = new double[possibleTokenCount];
+
+        predictor.reset(1);
+        predictor.step(token, 1, probabilities);
+        for(int prefixToken : prefix){
+            token[0] = prefixToken;
+            predictor.step(token, 1, probabilities);
+        }
+        return new PrefixCache.Entry(predictor.getState(0), probabilities);
+    }
+
+    /**
+     * Samples the rest of a batch of words, once the predictor has produced the distribution for the first token after
+     * the prefix.
+     *
+     * @param sampleCount   The number of words in the batch, which is also the number of rows in the predictor.
+     * @param prefix        The tokens every word starts with, which may be empty.
+     * @param predictor     The predictor, with its stored state after the prefix.
+     * @param probabilities The distribution for the first token after the prefix, for every row.
+     */
+    private List<int[]> continueWords(int sampleCount, int[] prefix, TokenPredictor predictor,
+                                      double[] probabilities) {
+        // Each row of the batch is generating one of the samples. Finished rows stay until the batch is compacted.
+        int rows = sampleCount;
+        int[] rowSamples = new int[sampleCount];
+        int[] previousTokens = new int[sampleCount];
+        int[][] sampleTokens = new int[sampleCount][possibleTokenCount];
+        int[] sampleLengths = new int[sampleCount];
+        for(int row = 0; row < rows; row++){
+            rowSamples[row] = row;
+            System.arraycopy(prefix, 0, sampleTokens[row], 0, prefix.length);
+            sampleLengths[row] = prefix.length;
+        }
 
         Random rng = new Random();
-        StringBuilder[] stringBuilders = new StringBuilder[sampleCount];
+        boolean[] finished = new boolean[sampleCount];
+        int active = sampleCount;
+
+        for( int charId=prefix.length; charId<possibleTokenCount; charId++ ){
+            //Output is a probability distribution for each example. Sample the next token for each of them
+            for(int row = 0; row < rows; row++) {
+                int sampleId = rowSamples[row];
+                if(finished[sampleId]){
+                    continue;
+                }
+
+                int sampledCharacterId = sampler.sample(probabilities, row * possibleTokenCount, possibleTokenCount,
+                                                        rng);
+                if(sampledCharacterId == EOF_TOKEN_ID){
+                    finished[sampleId] = true;
+                    active--;
+                } else {
+                    sampleTokens[sampleId][sampleLengths[sampleId]++] = sampledCharacterId;
+                }
+
+                //Prepare next time step input
+                previousTokens[row] = sampledCharacterId;
+            }
+
+            if(active == 0 || charId == possibleTokenCount - 1){
+                break;
+            }
+
+            if(active <= rows * COMPACTION_THRESHOLD){
+                int[] keep = new int[active];
+                int kept = 0;
+                for(int row = 0; row < rows; row++){
+                    if(!finished[rowSamples[row]]){
+                        keep[kept] = row;
+                        rowSamples[kept] = rowSamples[row];
+                        previousTokens[kept] = previousTokens[row];
+                        kept++;
+                    }
+                }
+                predictor.selectRows(keep);
+                rows = active;
+            }
+
+            predictor.step(previousTokens, rows, probabilities);	//Do one time step of forward pass
+        }
+
+        List<int[]> result = new ArrayList<>();
         for(int i = 0 ; i < sampleCount; i++){
-            stringBuilders[i] = new StringBuilder();
+            result.add(Arrays.copyOf(sampleTokens[i], sampleLengths[i]));
         }
+        return result;
+
+    }
 
-        for( int charId=0; charId<possibleTokenCount; charId++ ){
-            //Set up next input (single time step) by sampling from previous output
-            INDArray nextInput = Nd4j.zeros(sampleCount, possibleTokenCount, 1);
+    private List<String> toText(List<int[]> words) {
+        List<String> result = new ArrayList<>();
+        for(int[] tokens : words){
+            StringBuilder builder = new StringBuilder();
+            for(int token : tokens){
+                builder.append(tokeniser.toSymbol(token));
+            }
+            result.add(builder.toString());
+        }
+        return result;
+    }
 
-            //Output is a probability distribution. Sample from this for each example we want to generate, and add it to the new input
-            for(int sampleId = 0; sampleId < sampleCount; sampleId++) {
-                double[] outputProbDistribution = new double[possibleTokenCount];
+    /**
+     * Finds the most likely words using a beam search. Rather than running a separate forward pass for each beam, the
+     * beams are the rows of a single minibatch. After each time step the best continuations across every beam are
+     * chosen, and the stored RNN state is rearranged so each row continues from the beam it extends.
+     *
+     * The search stops once no unfinished beam can beat the least likely of the words already found, as adding tokens
+     * can only make a word less likely.
+     *
+     * @param beamWidth The number of beams, which is also the maximum number of words returned.
+     * @param network   The trained network. Its stored RNN state is cleared and then overwritten.
+     * @return The words found, from the most to the least likely, without their end of file tokens.
+     */
+    public List<String> beamSearch(int beamWidth, MultiLayerNetwork network) {
+        return beamSearch(beamWidth, 1, network);
+    }
 
-                for( int possibleCharId=0; possibleCharId < outputProbDistribution.length; possibleCharId++ ) {
-                    outputProbDistribution[possibleCharId] = output.getDouble(sampleId, possibleCharId, 0);
+    /**
+     * Finds the most likely words using a beam search, ignoring any word shorter than a minimum length. Short words
+     * are usually the most likely, so without a minimum the search mostly finds one or two token words.
+     *
+     * @param beamWidth The number of beams, which is also the maximum number of words returned.
+     * @param minLength The minimum number of tokens in a word.
+     * @param network   The trained network. Its stored RNN state is cleared and then overwritten.
+     * @return The words found, from the most to the least likely, without their end of file tokens.
+     * @see #beamSearch(int, MultiLayerNetwork)
+     */
+    public List<String> beamSearch(int beamWidth, int minLength, MultiLayerNetwork network) {
+        return beamSearch(beamWidth, minLength, new NetworkPredictor(network, tokenSet));
+    }
+
+    /**
+     * Finds the most likely words using a beam search, using any {@link TokenPredictor}.
+     *
+     * @param beamWidth The number of beams, which is also the maximum number of words returned.
+     * @param minLength The minimum number of tokens in a word.
+     * @param predictor The predictor for the trained network. Its stored state is cleared and then overwritten.
+     * @return The words found, from the most to the least likely, without their end of file tokens.
+     * @see #beamSearch(int, int, MultiLayerNetwork)
+     */
+    public List<String> beamSearch(int beamWidth, int minLength, TokenPredictor predictor) {
+        return measure(predictor, measured -> search(beamWidth, minLength, measured));
+    }
+
+    /**
+     * Runs the beam search.
+     */
+    private List<String> search(int beamWidth, int minLength, TokenPredictor predictor) {
+        int rows = 1;
+        int[] previousTokens = new int[]{START_TOKEN_ID};
+        int[][] beamTokens = new int[][]{new int[0]};
+        double[] beamScores = new double[]{0.0};
+
+        double[] probabilities = new double[beamWidth * possibleTokenCount];
+        PriorityQueue<Beam> finished = new PriorityQueue<>();
+        PriorityQueue<Beam> candidates = new PriorityQueue<>();
+
+        predictor.reset(rows);
+        predictor.step(previousTokens, rows, probabilities);
+
+        for(int charId = 0; charId < possibleTokenCount; charId++){
+            // Keeps the best beamWidth continuations in a min-heap, with finished words going into their own heap
+            candidates.clear();
+            for(int row = 0; row < rows; row++){
+                for(int token = 0; token < possibleTokenCount; token++){
+                    double probability = probabilities[row * possibleTokenCount + token];
+                    boolean allowed = token != START_TOKEN_ID && (token != EOF_TOKEN_ID || charId >= minLength);
+                    if(probability <= 0 || !allowed){
+                        continue;
+                    }
+                    double score = beamScores[row] + Math.log(probability);
+                    offer(token == EOF_TOKEN_ID ? finished : candidates, beamWidth, row, token, score);
                 }
+            }
 
-                int sampledCharacterId = sampleFromDistribution(outputProbDistribution, rng);
+            boolean noBetterWords = finished.size() == beamWidth && !candidates.isEmpty()
+                                    && best(candidates).score <= finished.peek().score;
+            if(candidates.isEmpty() || noBetterWords || charId == possibleTokenCount - 1){
+                break;
+            }
 
-                stringBuilders[sampleId].append(tokeniser.toSymbol(sampledCharacterId));
+            rows = candidates.size();
+            int[] parents = new int[rows];
+            int[][] nextTokens = new int[rows][];
+            double[] nextScores = new double[rows];
+            if(previousTokens.length < rows){
+                previousTokens = new int[beamWidth];
+            }
+            for(int row = rows - 1; row >= 0; row--){
+                Beam beam = candidates.poll();
+                parents[row] = beam.row;
+                nextTokens[row] = Arrays.copyOf(beamTokens[beam.row], beamTokens[beam.row].length + 1);
+                nextTokens[row][nextTokens[row].length - 1] = beam.token;
+                nextScores[row] = beam.score;
+                previousTokens[row] = beam.token;
+            }
 
-                nextInput.putScalar(new int[]{sampleId, sampledCharacterId, 0}, 1.0);        //Prepare next time step input
+            // Finished words keep a reference to the beam they ended, so they need the old beams' tokens
+            for(Beam word : finished){
+                if(word.tokens == null){
+                    word.tokens = beamTokens[word.row];
+                }
             }
 
-            output = network.rnnTimeStep(nextInput);	//Do one time step of forward pass
+            predictor.selectRows(parents);
+            beamTokens = nextTokens;
+            beamScores = nextScores;
+            predictor.step(previousTokens, rows, probabilities);
         }
 
+        for(Beam word : finished){
+            if(word.tokens == null){
+                word.tokens = beamTokens[word.row];
+            }
+        }
+
+        List<Beam> words = new ArrayList<>(finished);
+        words.sort(Collections.reverseOrder());
+
         List<String> result = new ArrayList<>();
-        for(int i = 0 ; i < sampleCount; i++){
-            String sample = stringBuilders[i].toString();
-            int length = sample.indexOf(TokenSet.EOF_TOKEN);
-            if(length > 0){
-                result.add(sample.substring(0, length));
-            } else {
-                result.add(sample);
+        for(Beam word : words){
+            StringBuilder builder = new StringBuilder();
+            for(int token : word.tokens){
+                builder.append(tokeniser.toSymbol(token));
             }
+            result.add(builder.toString());
         }
         return result;
-
     }
 
     /** Given a probability distribution over discrete classes, sample from the distribution
@@ -83,21 +474,106 @@ public class WordGenerator {
      * @param distribution Probability distribution over classes. Must sum to 1.0
      */
     public int sampleFromDistribution( double[] distribution, Random rng ){
-        double[] likelyDistribution = DoubleStream.of(distribution).map(x -> x >= minDistribution ? x : 0.0).toArray();
-        double total = DoubleStream.of(likelyDistribution).sum();
-
-        double target = 0.0;
-        double runningTotal = 0.0;
-
-        target = rng.nextDouble()*total;
-        runningTotal = 0.0;
-        for( int i=0; i < likelyDistribution.length; i++ ){
-            runningTotal += likelyDistribution[i];
-            if( target <= runningTotal ) {
-                return i;
+        return sampler.sample(Arrays.copyOf(distribution, distribution.length), 0, distribution.length, rng);
+    }
+
+    /**
+     * Runs a call and records the memory it used as the last usage on this thread. The predictor is only wrapped to
+     * sample the memory after every time step when that was asked for.
+     */
+    private <T> T measure(TokenPredictor predictor, Function<TokenPredictor, T> call) {
+        MemoryUsage usage = MemoryUsage.start();
+        try {
+            return call.apply(sampleMemoryEveryStep ? new MeasuredPredictor(predictor, usage) : predictor);
+        } finally {
+            lastMemoryUsage.set(usage.finish());
+        }
+    }
+
+    /**
+     * Adds a continuation to a min-heap holding the best continuations found so far, if it is good enough.
+     */
+    private void offer(PriorityQueue<Beam> heap, int beamWidth, int row, int token, double score) {
+        if(heap.size() < beamWidth){
+            heap.add(new Beam(row, token, score));
+        } else if(score > heap.peek().score){
+            heap.poll();
+            heap.add(new Beam(row, token, score));
+        }
+    }
+
+    private Beam best(PriorityQueue<Beam> heap) {
+        Beam best = null;
+        for(Beam beam : heap){
+            if(best == null || beam.score > best.score){
+                best = beam;
             }
         }
+        return best;
+    }
 
-        throw new RuntimeException("Couldn't find a valid possibility. Rolled " + target + " against a total of " + total);
+    /**
+     * Passes every call on to another predictor, sampling the memory used after each time step.
+     */
+    private static class MeasuredPredictor implements TokenPredictor {
+        private final TokenPredictor predictor;
+        private final MemoryUsage usage;
+
+        private MeasuredPredictor(TokenPredictor predictor, MemoryUsage usage) {
+            this.predictor = predictor;
+            this.usage = usage;
+        }
+
+        @Override
+        public void reset(int rows) {
+            predictor.reset(rows);
+        }
+
+        @Override
+        public void step(int[] tokens, int rows, double[] probabilities) {
+            predictor.step(tokens, rows, probabilities);
+            usage.sample();
+        }
+
+        @Override
+        public void selectRows(int[] keep) {
+            predictor.selectRows(keep);
+        }
+
+        @Override
+        public float[] getState(int row) {
+            return predictor.getState(row);
+        }
+
+        @Override
+        public void setState(float[] state, int rows) {
+            predictor.setState(state, rows);
+        }
+
+        @Override
+        public Object getModel() {
+            return predictor.getModel();
+        }
+    }
+
+    /**
+     * A beam extended by one more token, ordered by its log probability.
+     */
+    private static class Beam implements Comparable<Beam> {
+        private final int row;
+        private final int token;
+        private final double score;
+        private int[] tokens;
+
+        private Beam(int row, int token, double score) {
+            this.row = row;
+            this.token = token;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Beam other) {
+            return Double.compare(score, other.score);
+        }
     }
 }
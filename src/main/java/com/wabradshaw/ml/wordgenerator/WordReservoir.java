@@ -0,0 +1,448 @@
+package com.wabradshaw.ml.wordgenerator;
+
+import com.wabradshaw.ml.wordgenerator.decoding.Sampler;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a supply of words which have already been generated, so requests for a few words don't each pay for running
+ * the network over every time step. Generating a batch of a thousand words takes about as many steps as generating one.
+ *
+ * There is a separate pool of words for each network, {@link TokenSet} and {@link Sampler}. Networks and samplers are
+ * compared by identity, so the same instances should be passed in every time. Each pool is a bounded lock-free queue,
+ * so taking words which are already there doesn't block. Once a pool drops to its low water mark, a background thread
+ * refills it up to its capacity in large batches, using its own clone of the network. If a pool doesn't have enough
+ * words, the rest are generated on the calling thread using a second clone, so a request never waits for a refill.
+ * Requests which miss at the same time take turns with that clone.
+ *
+ * Each pool keeps its network, sampler and two clones alive, so only a limited number of pools are kept. Once there are
+ * more, the least recently used pool is dropped, along with its words. A pool can also be dropped straight away with
+ * {@link #evict}, e.g. when a model is reloaded.
+ *
+ * Words are only handed out once. This is safe to use from multiple threads at once.
+ */
+public class WordReservoir implements AutoCloseable {
+
+    private static final int DEFAULT_MAX_POOLS = 16;
+
+    private final int capacity;
+    private final int lowWaterMark;
+    private final int refillBatchSize;
+    private final int maxPools;
+    private final MemoryMode memoryMode;
+    private final ExecutorService refillers;
+    private final ConcurrentMap<Key, Pool> pools = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refills = new LongAdder();
+    private final LongAdder refilledWords = new LongAdder();
+    private final LongAdder refillNanos = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity        The most words kept in each pool.
+     * @param lowWaterMark    The number of words a pool can drop to before it is refilled.
+     * @param refillBatchSize The number of words generated at once when refilling a pool.
+     * @param refillThreads   The number of background threads refilling pools. Each pool is only refilled by one
+     *                        thread at a time.
+     */
+    public WordReservoir(int capacity, int lowWaterMark, int refillBatchSize, int refillThreads) {
+        this(capacity, lowWaterMark, refillBatchSize, refillThreads, MemoryMode.WORKSPACES);
+    }
+
+    /**
+     * @param capacity        The most words kept in each pool.
+     * @param lowWaterMark    The number of words a pool can drop to before it is refilled.
+     * @param refillBatchSize The number of words generated at once when refilling a pool.
+     * @param refillThreads   The number of background threads refilling pools. Each pool is only refilled by one
+     *                        thread at a time.
+     * @param memoryMode      Whether the clones of the networks use workspaces for each time step's temporary arrays.
+     *                        The networks passed in aren't changed.
+     */
+    public WordReservoir(int capacity, int lowWaterMark, int refillBatchSize, int refillThreads,
+                         MemoryMode memoryMode) {
+        this(capacity, lowWaterMark, refillBatchSize, refillThreads, DEFAULT_MAX_POOLS, memoryMode);
+    }
+
+    /**
+     * @param capacity        The most words kept in each pool.
+     * @param lowWaterMark    The number of words a pool can drop to before it is refilled.
+     * @param refillBatchSize The number of words generated at once when refilling a pool.
+     * @param refillThreads   The number of background threads refilling pools. Each pool is only refilled by one
+     *                        thread at a time.
+     * @param maxPools        The most pools kept at once. Each holds two clones of its network.
+     * @param memoryMode      Whether the clones of the networks use workspaces for each time step's temporary arrays.
+     *                        The networks passed in aren't changed.
+     */
+    public WordReservoir(int capacity, int lowWaterMark, int refillBatchSize, int refillThreads, int maxPools,
+                         MemoryMode memoryMode) {
+        if(capacity < 1 || refillBatchSize < 1 || refillThreads < 1 || maxPools < 1){
+            throw new IllegalArgumentException("The capacity, refill batch size, refill threads and maximum pools " +
+                                               "must be at least 1.");
+        }
+        if(lowWaterMark < 0 || lowWaterMark >= capacity){
+            throw new IllegalArgumentException("The low water mark must be between 0 and the capacity.");
+        }
+
+        this.capacity = capacity;
+        this.lowWaterMark = lowWaterMark;
+        this.refillBatchSize = refillBatchSize;
+        this.maxPools = maxPools;
+        this.memoryMode = memoryMode;
+        this.refillers = Executors.newFixedThreadPool(refillThreads, runnable -> {
+            Thread thread = new Thread(runnable, "word-reservoir-refill");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts filling the pool for a network and sampler in the background, so the first requests don't miss.
+     *
+     * @param network  The trained network. This is cloned twice, and isn't used directly.
+     * @param tokenSet The {@link TokenSet} the network was trained on.
+     * @param sampler  How each token is chosen from the network's output.
+     */
+    public void prime(MultiLayerNetwork network, TokenSet tokenSet, Sampler sampler) {
+        pool(network, tokenSet, sampler).refillIfLow();
+    }
+
+    /**
+     * Takes some words from the pool for a network and sampler. Any the pool doesn't have are generated straight away.
+     *
+     * @param words    The number of words to take.
+     * @param network  The trained network. This is cloned twice the first time it's used, and isn't used directly.
+     * @param tokenSet The {@link TokenSet} the network was trained on.
+     * @param sampler  How each token is chosen from the network's output.
+     * @return The words.
+     */
+    public List<String> take(int words, MultiLayerNetwork network, TokenSet tokenSet, Sampler sampler) {
+        if(words < 1){
+            throw new IllegalArgumentException("At least one word must be taken.");
+        }
+        Pool pool = pool(network, tokenSet, sampler);
+
+        List<String> result = new ArrayList<>(words);
+        pool.poll(result, words);
+        hits.add(result.size());
+
+        if(result.size() < words){
+            pool.generate(result, words);
+        }
+        pool.refillIfLow();
+        return result;
+    }
+
+    /**
+     * Drops the pool for a network and sampler, along with its words and its clones of the network. Any refill in
+     * progress is abandoned once its current batch has finished. Requests for the same network and sampler afterwards
+     * start a new pool.
+     *
+     * @param network  The trained network.
+     * @param tokenSet The {@link TokenSet} the network was trained on.
+     * @param sampler  How each token is chosen from the network's output.
+     * @return Whether there was a pool to drop.
+     */
+    public boolean evict(MultiLayerNetwork network, TokenSet tokenSet, Sampler sampler) {
+        Pool pool = pools.remove(new Key(network, tokenSet, sampler));
+        if(pool == null){
+            return false;
+        }
+        pool.retire();
+        return true;
+    }
+
+    /**
+     * @return The hits, misses and refills so far, across every pool.
+     */
+    public Stats getStats() {
+        int size = 0;
+        for(Pool pool : pools.values()){
+            size += pool.size.get();
+        }
+        return new Stats(hits.sum(), misses.sum(), refills.sum(), refilledWords.sum(), refillNanos.sum(), pools.size(),
+                         size);
+    }
+
+    /**
+     * Stops refilling the pools, once any refills in progress have finished. Words can still be taken, but any the
+     * pools don't have are generated on the calling thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        refillers.shutdown();
+        try {
+            refillers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Pool pool(MultiLayerNetwork network, TokenSet tokenSet, Sampler sampler) {
+        Key key = new Key(network, tokenSet, sampler);
+        Pool pool = pools.get(key);
+        if(pool == null){
+            pool = pools.computeIfAbsent(key, created -> new Pool(created, network, tokenSet, sampler));
+            evictLeastRecentlyUsed(pool);
+        }
+        pool.lastUsed = System.nanoTime();
+        return pool;
+    }
+
+    /**
+     * Drops the least recently used pools until there are no more than the maximum, other than the one just added.
+     */
+    private void evictLeastRecentlyUsed(Pool added) {
+        while(pools.size() > maxPools){
+            Pool oldest = null;
+            for(Pool pool : pools.values()){
+                if(pool != added && (oldest == null || pool.lastUsed < oldest.lastUsed)){
+                    oldest = pool;
+                }
+            }
+            if(oldest == null){
+                return;
+            }
+            if(pools.remove(oldest.key, oldest)){
+                oldest.retire();
+            }
+        }
+    }
+
+    /**
+     * The words generated for a single network and sampler. One clone of the network is only used to refill the pool,
+     * and the other is only used to generate the words requests were short of, one request at a time.
+     */
+    private class Pool {
+        private final Key key;
+        private final Queue<String> words = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private final MultiLayerNetwork refillNetwork;
+        private final MultiLayerNetwork requestNetwork;
+        private final WordGenerator wordGenerator;
+
+        private volatile long lastUsed = System.nanoTime();
+        private volatile boolean retired;
+
+        private Pool(Key key, MultiLayerNetwork network, TokenSet tokenSet, Sampler sampler) {
+            this.key = key;
+            this.refillNetwork = network.clone();
+            this.requestNetwork = network.clone();
+            memoryMode.apply(refillNetwork);
+            memoryMode.apply(requestNetwork);
+            this.wordGenerator = new WordGenerator(tokenSet, sampler, new PrefixCache(1));
+        }
+
+        /**
+         * Moves words from the queue into the result until it has the number wanted or the queue is empty.
+         */
+        private void poll(List<String> result, int wanted) {
+            String word;
+            while(result.size() < wanted && (word = words.poll()) != null){
+                size.decrementAndGet();
+                result.add(word);
+            }
+        }
+
+        /**
+         * Generates the rest of the words wanted. Another request may have been generating words first, and a refill
+         * may have finished meanwhile, so the queue is checked again.
+         */
+        private void generate(List<String> result, int wanted) {
+            synchronized (requestNetwork) {
+                int before = result.size();
+                poll(result, wanted);
+                hits.add(result.size() - before);
+
+                int missing = wanted - result.size();
+                if(missing > 0){
+                    result.addAll(wordGenerator.generate(missing, requestNetwork));
+                    misses.add(missing);
+                }
+            }
+        }
+
+        /**
+         * Starts a refill on a background thread if the pool is at or below the low water mark, and isn't already
+         * being refilled.
+         */
+        private void refillIfLow() {
+            if(running && !retired && size.get() <= lowWaterMark && refilling.compareAndSet(false, true)){
+                try {
+                    refillers.execute(this::refill);
+                } catch (RejectedExecutionException e) {
+                    // The reservoir has been closed
+                    refilling.set(false);
+                }
+            }
+        }
+
+        private void refill() {
+            try {
+                int space;
+                while(running && !retired && (space = capacity - size.get()) > 0){
+                    long start = System.nanoTime();
+                    List<String> generated = wordGenerator.generate(Math.min(space, refillBatchSize), refillNetwork);
+
+                    // Words are only added while there's room, as requests may have generated their own meanwhile
+                    int added = 0;
+                    for(String word : generated){
+                        if(size.incrementAndGet() > capacity){
+                            size.decrementAndGet();
+                            break;
+                        }
+                        words.add(word);
+                        added++;
+                    }
+
+                    refills.increment();
+                    refilledWords.add(added);
+                    refillNanos.add(System.nanoTime() - start);
+                }
+            } finally {
+                refilling.set(false);
+            }
+            // Words may have been taken after the last check but before the flag was cleared
+            refillIfLow();
+        }
+
+        /**
+         * Stops refilling the pool and drops its words, once it has been removed from the reservoir. Requests which
+         * already have the pool can still generate their words with it.
+         */
+        private void retire() {
+            retired = true;
+            while(words.poll() != null){
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    private static class Key {
+        private final Object model;
+        private final TokenSet tokenSet;
+        private final Sampler sampler;
+
+        private Key(Object model, TokenSet tokenSet, Sampler sampler) {
+            this.model = model;
+            this.tokenSet = tokenSet;
+            this.sampler = sampler;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)){
+                return false;
+            }
+            Key other = (Key) o;
+            return model == other.model && tokenSet == other.tokenSet && sampler == other.sampler;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(model) * 31 + tokenSet.hashCode()) * 31 + System.identityHashCode(sampler);
+        }
+    }
+
+    /**
+     * The totals across every pool at a single point in time. Hits and misses are counted in words.
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long refills;
+        private final long refilledWords;
+        private final double refillMillis;
+        private final int pools;
+        private final int size;
+
+        private Stats(long hits, long misses, long refills, long refilledWords, long refillNanos, int pools,
+                      int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.refills = refills;
+            this.refilledWords = refilledWords;
+            this.refillMillis = refillNanos / 1e6;
+            this.pools = pools;
+            this.size = size;
+        }
+
+        /**
+         * @return The number of words taken from a pool.
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return The number of words which had to be generated for a request, because the pool was empty.
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return The fraction of words taken from a pool.
+         */
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : hits * 1.0 / total;
+        }
+
+        /**
+         * @return The number of batches generated in the background.
+         */
+        public long getRefills() {
+            return refills;
+        }
+
+        /**
+         * @return The number of words added to the pools in the background.
+         */
+        public long getRefilledWords() {
+            return refilledWords;
+        }
+
+        /**
+         * @return The total time spent refilling, in milliseconds.
+         */
+        public double getRefillMillis() {
+            return refillMillis;
+        }
+
+        public int getPools() {
+            return pools;
+        }
+
+        /**
+         * @return The number of words waiting in every pool.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses (%.1f%% hit rate), %d refills of %d words taking %.0f ms, " +
+                                 "%d words in %d pools",
+                                 hits, misses, getHitRate() * 100, refills, refilledWords, refillMillis, size, pools);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.wabradshaw.ml.wordgenerator.decoding;
+
+import java.util.Random;
+
+/**
+ * A {@link Sampler} which rescales the distribution by a temperature, removes any tokens the strategy doesn't allow,
+ * then samples from the rest in proportion to their remaining weight. Everything happens in place, so sampling doesn't
+ * allocate anything.
+ */
+public abstract class AbstractSampler implements Sampler {
+
+    private final double temperature;
+
+    /**
+     * @param temperature Values below 1 make likely tokens even more likely, while values above 1 flatten the
+     *                    distribution. 1 leaves it unchanged.
+     */
+    public AbstractSampler(double temperature) {
+        if(temperature <= 0){
+            throw new IllegalArgumentException("The temperature must be positive, not " + temperature);
+        }
+        this.temperature = temperature;
+    }
+
+    @Override
+    public int sample(double[] distributions, int offset, int length, Random rng) {
+        if(temperature != 1.0){
+            double exponent = 1.0 / temperature;
+            for(int i = offset; i < offset + length; i++){
+                distributions[i] = Math.pow(distributions[i], exponent);
+            }
+        }
+
+        filter(distributions, offset, length);
+
+        double total = 0.0;
+        for(int i = offset; i < offset + length; i++){
+            total += distributions[i];
+        }
+
+        double target = rng.nextDouble() * total;
+        double runningTotal = 0.0;
+        for(int i = offset; i < offset + length; i++){
+            if(distributions[i] > 0){
+                runningTotal += distributions[i];
+                if(target <= runningTotal){
+                    return i - offset;
+                }
+            }
+        }
+
+        throw new RuntimeException("Couldn't find a valid possibility. Rolled " + target + " against a total of " + total);
+    }
+
+    /**
+     * Sets the weight of every token the strategy doesn't allow to zero. The weights are not normalised, as they may
+     * have been rescaled by the temperature.
+     *
+     * @param weights The weights of each token.
+     * @param offset  The index of the start of the row.
+     * @param length  The number of tokens in the row.
+     */
+    protected abstract void filter(double[] weights, int offset, int length);
+
+    /**
+     * Finds the largest weight in a row which is below a limit.
+     *
+     * @return The index of the weight, or -1 if there isn't one.
+     */
+    protected static int largestBelow(double[] weights, int offset, int length, double limit, int limitIndex) {
+        int best = -1;
+        for(int i = offset; i < offset + length; i++){
+            double weight = weights[i];
+            boolean belowLimit = weight < limit || (weight == limit && i > limitIndex);
+            if(belowLimit && (best == -1 || weight > weights[best])){
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,51 @@
+package com.wabradshaw.ml.wordgenerator.decoding;
+
+/**
+ * Samples from the smallest set of the most likely tokens whose combined probability is at least p, also known as
+ * top-p sampling. Unlike top-k, the number of tokens kept grows when the network is unsure what comes next.
+ */
+public class NucleusSampler extends AbstractSampler {
+
+    private final double p;
+
+    public NucleusSampler(double p) {
+        this(p, 1.0);
+    }
+
+    public NucleusSampler(double p, double temperature) {
+        super(temperature);
+        if(p <= 0 || p > 1){
+            throw new IllegalArgumentException("p must be above 0 and at most 1, not " + p);
+        }
+        this.p = p;
+    }
+
+    @Override
+    protected void filter(double[] weights, int offset, int length) {
+        double total = 0.0;
+        for(int i = offset; i < offset + length; i++){
+            total += weights[i];
+        }
+
+        // Walks down the weights from the largest until enough of the total is covered
+        double target = p * total;
+        double covered = 0.0;
+        double limit = Double.POSITIVE_INFINITY;
+        int limitIndex = -1;
+        while(covered < target){
+            int next = largestBelow(weights, offset, length, limit, limitIndex);
+            if(next == -1){
+                return;
+            }
+            limitIndex = next;
+            limit = weights[next];
+            covered += limit;
+        }
+
+        for(int i = offset; i < offset + length; i++){
+            if(weights[i] < limit || (weights[i] == limit && i > limitIndex)){
+                weights[i] = 0.0;
+            }
+        }
+    }
+}
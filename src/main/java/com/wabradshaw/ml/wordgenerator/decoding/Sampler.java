@@ -0,0 +1,20 @@
+package com.wabradshaw.ml.wordgenerator.decoding;
+
+import java.util.Random;
+
+/**
+ * Interface for classes which choose the next token from the probability distribution output by the network.
+ */
+public interface Sampler {
+
+    /**
+     * Samples a token from one row of a block of probability distributions. The row may be overwritten while sampling.
+     *
+     * @param distributions Probability distributions over tokens, with one row per example.
+     * @param offset        The index of the start of the row to sample from.
+     * @param length        The number of tokens in the row.
+     * @param rng           The source of randomness.
+     * @return The index of the sampled token within the row.
+     */
+    public int sample(double[] distributions, int offset, int length, Random rng);
+}
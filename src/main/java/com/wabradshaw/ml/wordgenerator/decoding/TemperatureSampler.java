@@ -0,0 +1,15 @@
+package com.wabradshaw.ml.wordgenerator.decoding;
+
+/**
+ * Samples from every token, after rescaling the distribution by a temperature.
+ */
+public class TemperatureSampler extends AbstractSampler {
+
+    public TemperatureSampler(double temperature) {
+        super(temperature);
+    }
+
+    @Override
+    protected void filter(double[] weights, int offset, int length) {
+    }
+}
@@ -0,0 +1,29 @@
+package com.wabradshaw.ml.wordgenerator.decoding;
+
+/**
+ * Samples from every token whose probability is at least a fixed minimum. With a minimum of 0 this is plain ancestral
+ * sampling from the network's distribution.
+ */
+public class ThresholdSampler extends AbstractSampler {
+
+    private final double threshold;
+
+    public ThresholdSampler(double minDistribution) {
+        this(minDistribution, 1.0);
+    }
+
+    public ThresholdSampler(double minDistribution, double temperature) {
+        super(temperature);
+        // The minimum applies to the network's probabilities, so it is rescaled along with them
+        this.threshold = Math.pow(minDistribution, 1.0 / temperature);
+    }
+
+    @Override
+    protected void filter(double[] weights, int offset, int length) {
+        for(int i = offset; i < offset + length; i++){
+            if(weights[i] < threshold){
+                weights[i] = 0.0;
+            }
+        }
+    }
+}
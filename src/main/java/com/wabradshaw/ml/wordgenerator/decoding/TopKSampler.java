@@ -0,0 +1,42 @@
+package com.wabradshaw.ml.wordgenerator.decoding;
+
+/**
+ * Samples from only the k most likely tokens.
+ */
+public class TopKSampler extends AbstractSampler {
+
+    private final int k;
+
+    public TopKSampler(int k) {
+        this(k, 1.0);
+    }
+
+    public TopKSampler(int k, double temperature) {
+        super(temperature);
+        if(k < 1){
+            throw new IllegalArgumentException("At least one token must be kept, not " + k);
+        }
+        this.k = k;
+    }
+
+    @Override
+    protected void filter(double[] weights, int offset, int length) {
+        if(k >= length){
+            return;
+        }
+
+        // Walks down the k largest weights. Token sets are small, so this is quicker than sorting a copy of the row.
+        double limit = Double.POSITIVE_INFINITY;
+        int limitIndex = -1;
+        for(int kept = 0; kept < k; kept++){
+            limitIndex = largestBelow(weights, offset, length, limit, limitIndex);
+            limit = weights[limitIndex];
+        }
+
+        for(int i = offset; i < offset + length; i++){
+            if(weights[i] < limit || (weights[i] == limit && i > limitIndex)){
+                weights[i] = 0.0;
+            }
+        }
+    }
+}
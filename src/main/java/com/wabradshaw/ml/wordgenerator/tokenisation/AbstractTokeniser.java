@@ -2,26 +2,77 @@ package com.wabradshaw.ml.wordgenerator.tokenisation;
 
 import com.wabradshaw.ml.wordgenerator.TokenSet;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class AbstractTokeniser implements Tokeniser{
 
     private final String[] tokens;
-    private final Map<String, Integer> tokenToIndexMap;
+    private final SymbolTrie symbolTrie;
 
     public AbstractTokeniser(TokenSet tokenSet){
         this.tokens = tokenSet.getTokens();
-        this.tokenToIndexMap = new HashMap<>();
+        this.symbolTrie = new SymbolTrie(tokens);
+    }
 
-        for(int i = 0; i < tokenSet.getLength(); i++){
-            tokenToIndexMap.put(tokens[i], i);
+    @Override
+    public List<Integer> tokenise(String word){
+        int[] destination = new int[word.length()];
+        int length = tokenise(word, destination);
+        if(length < 0){
+            throw new IllegalArgumentException("Unknown symbol in " + word);
         }
+
+        List<Integer> result = new ArrayList<>(length);
+        for(int i = 0; i < length; i++){
+            result.add(destination[i]);
+        }
+        return result;
     }
 
+    @Override
+    public int tokenise(CharSequence word, int[] destination){
+        return tokenise(word, destination, 0);
+    }
+
+    /**
+     * Writes straight into the buffer's backing array when it has one with enough room. Otherwise, e.g. for a direct
+     * buffer, the tokens are written into a temporary array and then copied.
+     */
+    @Override
+    public int tokenise(CharSequence word, IntBuffer destination){
+        if(destination.hasArray() && destination.remaining() >= word.length()){
+            int length = tokenise(word, destination.array(), destination.arrayOffset() + destination.position());
+            if(length > 0){
+                destination.position(destination.position() + length);
+            }
+            return length;
+        }
+
+        int[] tokens = new int[word.length()];
+        int length = tokenise(word, tokens, 0);
+        if(length > 0){
+            destination.put(tokens, 0, length);
+        }
+        return length;
+    }
+
+    /**
+     * Converts a word into tokens, writing them into an array from an offset. The array may have been written to even
+     * if the word contains an unknown symbol.
+     *
+     * @return The number of tokens written, or -1 if the word contains an unknown symbol.
+     */
+    protected abstract int tokenise(CharSequence word, int[] destination, int offset);
+
     @Override
     public int toToken(String symbol){
-        return tokenToIndexMap.get(symbol);
+        int token = symbolTrie.lookup(symbol, 0, symbol.length());
+        if(token < 0){
+            throw new IllegalArgumentException("Unknown symbol " + symbol);
+        }
+        return token;
     }
 
     @Override
@@ -30,6 +81,15 @@ public abstract class AbstractTokeniser implements Tokeniser{
     }
 
     protected boolean knownSymbol(String symbol){
-        return tokenToIndexMap.containsKey(symbol);
+        return symbolTrie.lookup(symbol, 0, symbol.length()) >= 0;
+    }
+
+    /**
+     * Finds the token for a section of some text, without creating a substring.
+     *
+     * @return The token, or -1 if the section isn't a known symbol.
+     */
+    protected int toToken(CharSequence text, int start, int end){
+        return symbolTrie.lookup(text, start, end);
     }
 }
@@ -2,10 +2,6 @@ package com.wabradshaw.ml.wordgenerator.tokenisation;
 
 import com.wabradshaw.ml.wordgenerator.TokenSet;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-
 public class LexemeTokeniser extends AbstractTokeniser {
 
     private static final int MAX_LENGTH = 14;
@@ -16,11 +12,15 @@ public class LexemeTokeniser extends AbstractTokeniser {
 
     @Override
     public String getRelevantWord(String line) {
-        String word = line.split(" ")[0];
+        int end = line.indexOf(' ');
+        String word = end < 0 ? line : line.substring(0, end);
 
         //Ignore words (return null) that contain unknown characters
-        for(String letter : word.split("")){
-            if (!knownSymbol(letter)) {
+        if(word.isEmpty()){
+            return null;
+        }
+        for(int i = 0; i < word.length(); i++){
+            if (toToken(word, i, i + 1) < 0) {
                 return null;
             }
         }
@@ -29,11 +29,15 @@ public class LexemeTokeniser extends AbstractTokeniser {
     }
 
     @Override
-    public List<Integer> tokenise(String word) {
-
-        String[] letters = word.split("");
-        return Arrays.stream(letters)
-              .map(this::toToken)
-              .collect(Collectors.toList());
+    protected int tokenise(CharSequence word, int[] destination, int offset) {
+        // Every letter is its own token
+        for(int i = 0; i < word.length(); i++){
+            int token = toToken(word, i, i + 1);
+            if(token < 0){
+                return -1;
+            }
+            destination[offset + i] = token;
+        }
+        return word.length();
     }
 }
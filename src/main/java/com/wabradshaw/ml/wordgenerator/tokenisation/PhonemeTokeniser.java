@@ -2,10 +2,6 @@ package com.wabradshaw.ml.wordgenerator.tokenisation;
 
 import com.wabradshaw.ml.wordgenerator.TokenSet;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-
 public class PhonemeTokeniser extends AbstractTokeniser {
 
     private final boolean splitStresses;
@@ -17,10 +13,10 @@ public class PhonemeTokeniser extends AbstractTokeniser {
 
     @Override
     public String getRelevantWord(String line) {
-        String[] split = line.split(" ", 2);
+        int split = line.indexOf(' ');
 
-        if(split.length == 2){
-            return split[1];
+        if(split >= 0){
+            return line.substring(split + 1);
         } else {
             // Line is improperly formed and should be ignored.
             return null;
@@ -28,16 +24,37 @@ public class PhonemeTokeniser extends AbstractTokeniser {
     }
 
     @Override
-    public List<Integer> tokenise(String word) {
-        if(this.splitStresses){
-            word = word.replaceAll("(\\d)", " $1");
+    protected int tokenise(CharSequence word, int[] destination, int offset) {
+        int length = word.length();
+        int count = 0;
+
+        // Symbols are separated by spaces. When stresses are split, each stress digit is also a symbol of its own.
+        int i = 0;
+        while(i < length){
+            if(word.charAt(i) == ' '){
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            if(!isStress(word.charAt(i))){
+                while(end < length && word.charAt(end) != ' ' && !isStress(word.charAt(end))){
+                    end++;
+                }
+            }
+
+            int token = toToken(word, i, end);
+            if(token < 0){
+                return -1;
+            }
+            destination[offset + count++] = token;
+            i = end;
         }
+        return count;
+    }
 
-        String[] symbols = word.split(" ");
-        return Arrays.stream(symbols)
-                     .filter(x -> !x.isEmpty())
-                     .map(this::toToken)
-                     .collect(Collectors.toList());
+    private boolean isStress(char c) {
+        return splitStresses && c >= '0' && c <= '9';
     }
 
     @Override
@@ -0,0 +1,84 @@
+package com.wabradshaw.ml.wordgenerator.tokenisation;
+
+import java.util.Arrays;
+
+/**
+ * A character level trie over the symbols in a {@link com.wabradshaw.ml.wordgenerator.TokenSet}, used to look up the
+ * token for a symbol inside a longer piece of text without creating a substring or boxing the result.
+ *
+ * Every symbol is ASCII, so each node stores its children in a flat table with a slot for each ASCII character.
+ */
+class SymbolTrie {
+
+    private static final int ALPHABET = 128;
+    private static final int NONE = -1;
+
+    private int[] children;
+    private int[] tokens;
+    private int nodeCount;
+
+    SymbolTrie(String[] symbols) {
+        this.children = new int[ALPHABET * 16];
+        this.tokens = new int[16];
+        this.nodeCount = 0;
+        addNode();
+
+        for(int token = 0; token < symbols.length; token++){
+            add(symbols[token], token);
+        }
+    }
+
+    private void add(String symbol, int token) {
+        int node = 0;
+        for(int i = 0; i < symbol.length(); i++){
+            char c = symbol.charAt(i);
+            if(c >= ALPHABET){
+                throw new IllegalArgumentException("Symbols must be ASCII, but found " + symbol);
+            }
+            int child = children[node * ALPHABET + c];
+            if(child == 0){
+                child = addNode();
+                children[node * ALPHABET + c] = child;
+            }
+            node = child;
+        }
+        tokens[node] = token;
+    }
+
+    private int addNode() {
+        if(nodeCount == tokens.length){
+            children = Arrays.copyOf(children, children.length * 2);
+            tokens = Arrays.copyOf(tokens, tokens.length * 2);
+        }
+        tokens[nodeCount] = NONE;
+        return nodeCount++;
+    }
+
+    /**
+     * Finds the token for a section of some text. The section must match a symbol exactly.
+     *
+     * @param text  The text containing the symbol.
+     * @param start The index of the first character of the symbol.
+     * @param end   The index after the last character of the symbol.
+     * @return The token, or -1 if the section isn't a known symbol.
+     */
+    int lookup(CharSequence text, int start, int end) {
+        if(start == end){
+            return NONE;
+        }
+
+        int node = 0;
+        for(int i = start; i < end; i++){
+            char c = text.charAt(i);
+            if(c >= ALPHABET){
+                return NONE;
+            }
+            // The root is never a child, so 0 marks a missing child
+            node = children[node * ALPHABET + c];
+            if(node == 0){
+                return NONE;
+            }
+        }
+        return tokens[node];
+    }
+}
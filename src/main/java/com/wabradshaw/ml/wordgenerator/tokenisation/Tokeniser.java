@@ -1,5 +1,6 @@
 package com.wabradshaw.ml.wordgenerator.tokenisation;
 
+import java.nio.IntBuffer;
 import java.util.List;
 
 /**
@@ -11,6 +12,26 @@ public interface Tokeniser {
 
     public List<Integer> tokenise(String word);
 
+    /**
+     * Converts a word into tokens, writing them into an existing array rather than allocating a list.
+     *
+     * @param word        The word to tokenise.
+     * @param destination The array to write the tokens into, starting from index 0. Words never have more tokens
+     *                    than characters, so an array as long as the word is always big enough.
+     * @return The number of tokens written, or -1 if the word contains an unknown symbol.
+     */
+    public int tokenise(CharSequence word, int[] destination);
+
+    /**
+     * Converts a word into tokens, writing them into a buffer starting at its current position. The position is
+     * moved past the tokens, or left where it was if the word contains an unknown symbol.
+     *
+     * @param word        The word to tokenise.
+     * @param destination The buffer to write the tokens into.
+     * @return The number of tokens written, or -1 if the word contains an unknown symbol.
+     */
+    public int tokenise(CharSequence word, IntBuffer destination);
+
     public int toToken(String symbol);
 
     public String toSymbol(int index);